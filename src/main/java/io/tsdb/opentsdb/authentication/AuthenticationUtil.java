@@ -21,21 +21,104 @@ import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import javax.xml.bind.DatatypeConverter;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class AuthenticationUtil {
   private static final Logger LOG = LoggerFactory.getLogger(AuthenticationUtil.class);
   public static final String algo = "HmacSHA256";
+  // a salt is a request date, which is only accepted for 20 minutes
+  private static final long SALTED_HMAC_TTL = TimeUnit.MINUTES.toMillis(20);
+  private static final int MAX_SALTED_HMACS = 64 * 1024;
+  private static final int MAX_MACS_PER_THREAD = 256;
 
-  private static Mac generateMAC(String accessKeySecret) throws NoSuchAlgorithmException, InvalidKeyException {
-    SecretKeySpec signingKey = new SecretKeySpec(accessKeySecret.getBytes(), algo);
-    Mac mac = Mac.getInstance(algo);
-    mac.init(signingKey);
-    return mac;
+  // Mac and MessageDigest instances are not thread safe, so every thread
+  // keeps its own, with a Mac already keyed for each recently seen access key
+  private static final ThreadLocal<Map<String, KeyedMac>> macs = new ThreadLocal<Map<String, KeyedMac>>() {
+    @Override
+    protected Map<String, KeyedMac> initialValue() {
+      return new LinkedHashMap<String, KeyedMac>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, KeyedMac> eldest) {
+          return size() > MAX_MACS_PER_THREAD;
+        }
+      };
+    }
+  };
+  private static final ThreadLocal<MessageDigest> sha256 = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("SHA-256 is not available", e);
+      }
+    }
+  };
+  private static final AtomicReference<SaltedHMACs> saltedHMACs = new AtomicReference<SaltedHMACs>(
+          new SaltedHMACs(new ConcurrentHashMap<String, SaltedHMAC>(), System.currentTimeMillis() + SALTED_HMAC_TTL));
+
+  private static final class KeyedMac {
+    private final String secret;
+    private final Mac mac;
+
+    private KeyedMac(String secret, Mac mac) {
+      this.secret = secret;
+      this.mac = mac;
+    }
+  }
+
+  private static final class SaltedHMAC {
+    private final String secret;
+    private final String hmac;
+
+    private SaltedHMAC(String secret, String hmac) {
+      this.secret = secret;
+      this.hmac = hmac;
+    }
+  }
+
+  /**
+   * Salted HMACs in two generations. New ones go into the current
+   * generation, and one found only in the previous generation is carried
+   * over. Once the current generation is a TTL old or full it becomes the
+   * previous one, and the previous one is dropped as a whole, so salts that
+   * stopped being used expire without ever being scanned.
+   */
+  private static final class SaltedHMACs {
+    private final ConcurrentHashMap<String, SaltedHMAC> current = new ConcurrentHashMap<String, SaltedHMAC>();
+    private final ConcurrentHashMap<String, SaltedHMAC> previous;
+    private final long rotates;
+
+    private SaltedHMACs(ConcurrentHashMap<String, SaltedHMAC> previous, long rotates) {
+      this.previous = previous;
+      this.rotates = rotates;
+    }
+  }
+
+  private static Mac generateMAC(String accessKey, String accessKeySecret) throws NoSuchAlgorithmException, InvalidKeyException {
+    Map<String, KeyedMac> threadMacs = macs.get();
+    KeyedMac keyed = threadMacs.get(accessKey);
+    // a changed secret re-keys the Mac
+    if (keyed == null || !keyed.secret.equals(accessKeySecret)) {
+      SecretKeySpec signingKey = new SecretKeySpec(accessKeySecret.getBytes(), algo);
+      Mac mac = Mac.getInstance(algo);
+      mac.init(signingKey);
+      keyed = new KeyedMac(accessKeySecret, mac);
+      threadMacs.put(accessKey, keyed);
+    }
+    return keyed.mac;
   }
 
   private static String generateSaltedHMAC(String accessKey, String userSalt, Mac mac) throws UnsupportedEncodingException {
@@ -44,7 +127,7 @@ public class AuthenticationUtil {
   }
 
   private static String generateDigestHMAC(String saltedHMAC, String nonce) throws NoSuchAlgorithmException {
-    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    MessageDigest md = sha256.get();
     md.update((saltedHMAC + ":" + nonce).getBytes());
     byte[] bytes = md.digest();
     return DatatypeConverter.printBase64Binary(bytes);
@@ -52,9 +135,11 @@ public class AuthenticationUtil {
 
   private static String hmacDigest(String accessKey, String accessKeySecret, String userSalt, String nonce) {
     String digest = null;
+    if (accessKeySecret == null) {
+      throw new IllegalArgumentException("Unknown access key: " + accessKey);
+    }
     try {
-      Mac mac = generateMAC(accessKeySecret);
-      String saltedHMAC = generateSaltedHMAC(accessKey, userSalt, mac);
+      String saltedHMAC = getSaltedHMAC(accessKey, accessKeySecret, userSalt);
       digest = generateDigestHMAC(saltedHMAC, nonce);
     } catch (UnsupportedEncodingException e) {
       LOG.error("UnsupportedEncodingException: " + e);
@@ -66,6 +151,55 @@ public class AuthenticationUtil {
     return digest;
   }
 
+  /**
+   * Returns the salted HMAC for the key and salt, computing it only when it
+   * is not cached or was computed with a different secret.
+   */
+  private static String getSaltedHMAC(String accessKey, String accessKeySecret, String userSalt)
+          throws NoSuchAlgorithmException, InvalidKeyException, UnsupportedEncodingException {
+    String cacheKey = accessKey + ":" + userSalt;
+    long now = System.currentTimeMillis();
+    SaltedHMACs cache = saltedHMACs.get();
+    if (now >= cache.rotates || cache.current.size() >= MAX_SALTED_HMACS) {
+      // whoever loses the race uses the winner's generation
+      saltedHMACs.compareAndSet(cache, new SaltedHMACs(cache.current, now + SALTED_HMAC_TTL));
+      cache = saltedHMACs.get();
+    }
+    SaltedHMAC cached = cache.current.get(cacheKey);
+    if (cached == null) {
+      cached = cache.previous.get(cacheKey);
+      if (cached != null && cached.secret.equals(accessKeySecret)) {
+        cache.current.put(cacheKey, cached);
+      }
+    }
+    if (cached != null && cached.secret.equals(accessKeySecret)) {
+      return cached.hmac;
+    }
+    String hmac = generateSaltedHMAC(accessKey, userSalt, generateMAC(accessKey, accessKeySecret));
+    cache.current.put(cacheKey, new SaltedHMAC(accessKeySecret, hmac));
+    return hmac;
+  }
+
+  /**
+   * Drops the cached salted HMACs of an access key whose credentials changed.
+   * Per-thread Macs re-key themselves the next time they see the new secret.
+   */
+  public static void invalidate(String accessKey) {
+    String prefix = accessKey + ":";
+    SaltedHMACs cache = saltedHMACs.get();
+    removePrefix(cache.current, prefix);
+    removePrefix(cache.previous, prefix);
+  }
+
+  private static void removePrefix(Map<String, SaltedHMAC> hmacs, String prefix) {
+    Iterator<String> keys = hmacs.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next().startsWith(prefix)) {
+        keys.remove();
+      }
+    }
+  }
+
   public static void validateFields(Map<String, String> fields) throws IllegalArgumentException {
     if (!fields.containsKey("digest")) {
       throw new IllegalArgumentException(("digest is a required field"));
@@ -95,6 +229,23 @@ public class AuthenticationUtil {
     return digest;
   }
 
+  public static String createDigest(String accessKey, String accessKeySecret, String salt, String nonce) {
+    return hmacDigest(accessKey, accessKeySecret, salt, nonce);
+  }
+
+  /**
+   * Derives the session token for an access key and a date it authenticated
+   * with, which the client computes the same way.
+   */
+  public static String createSessionToken(String accessKey, String accessKeySecret, String date) {
+    try {
+      Mac mac = generateMAC(accessKey, accessKeySecret);
+      return DatatypeConverter.printBase64Binary(mac.doFinal(("session:" + accessKey + ":" + date).getBytes("ASCII")));
+    } catch (UnsupportedEncodingException | InvalidKeyException | NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Unable to create session token", e);
+    }
+  }
+
   public static Map<String, String> createFields(final String input) {
     final Map<String, String> map = new HashMap<String, String>();
     for (String pair : input.split("&")) {
@@ -132,8 +283,8 @@ public class AuthenticationUtil {
   }
 
   public static Boolean validateCredentials(String correctAccess, String correctSecret, String providedAccess, String providedSecret){
-    Boolean secretMatched = correctAccess.equals(providedAccess);
-    Boolean keyMatched = correctSecret.equals(providedSecret);
+    Boolean secretMatched = constantTimeEquals(correctAccess, providedAccess);
+    Boolean keyMatched = constantTimeEquals(correctSecret, providedSecret);
     if (keyMatched && secretMatched) {
       LOG.info("Authentication Succeeded for: " + providedAccess);
       return true;
@@ -142,4 +293,15 @@ public class AuthenticationUtil {
       return false;
     }
   }
+
+  /**
+   * Compares secrets and digests in time that does not depend on where they
+   * first differ.
+   */
+  private static boolean constantTimeEquals(String a, String b) {
+    if (a == null || b == null) {
+      return false;
+    }
+    return MessageDigest.isEqual(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8));
+  }
 }
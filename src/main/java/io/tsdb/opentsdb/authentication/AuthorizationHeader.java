@@ -0,0 +1,124 @@
+package io.tsdb.opentsdb.authentication;
+/**
+ * Copyright 2015 The opentsdb Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import net.opentsdb.utils.DateTime;
+
+/**
+ * The fields of an {@code accessKey:digest:date:nonce} credential, as sent
+ * after {@code OpenTSDB} in an HTTP Authorization header or after
+ * {@code auth hmacsha256} on the telnet interface, or of an
+ * {@code accessKey:date:token} session sent after {@code OpenTSDB-Session}.
+ * Parsing scans the value once and only allocates the field strings.
+ */
+final class AuthorizationHeader {
+  private static final String SCHEME = "OpenTSDB";
+  private static final String SESSION_SCHEME = "OpenTSDB-Session";
+
+  final String accessKey;
+  // the session token for session credentials
+  final String digest;
+  // the date as sent, which is also the salt of the digest
+  final String date;
+  // null for session credentials
+  final String nonce;
+
+  private AuthorizationHeader(String accessKey, String digest, String date, String nonce) {
+    this.accessKey = accessKey;
+    this.digest = digest;
+    this.date = date;
+    this.nonce = nonce;
+  }
+
+  /**
+   * Parses an HTTP Authorization header value of the form
+   * {@code OpenTSDB accessKey:digest:date:nonce} or
+   * {@code OpenTSDB-Session accessKey:date:token}. Extra spaces after the
+   * scheme and whitespace after the credential are ignored.
+   */
+  static AuthorizationHeader parseHttp(String value) {
+    int space = value.indexOf(' ');
+    int start = space + 1;
+    while (start < value.length() && value.charAt(start) == ' ') {
+      start++;
+    }
+    int end = value.length();
+    while (end > start && value.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    if (space == SCHEME.length() && value.regionMatches(true, 0, SCHEME, 0, space)) {
+      return parse(value, start, end);
+    }
+    if (space == SESSION_SCHEME.length() && value.regionMatches(true, 0, SESSION_SCHEME, 0, space)) {
+      int first = value.indexOf(':', start);
+      int second = first < 0 ? -1 : value.indexOf(':', first + 1);
+      if (second < 0 || value.indexOf(':', second + 1) >= 0 || hasSpace(value, start, end)) {
+        throw new IllegalArgumentException("Improperly formatted Authorization Header: " + value);
+      }
+      return new AuthorizationHeader(value.substring(start, first), value.substring(second + 1, end),
+              value.substring(first + 1, second), null);
+    }
+    throw new IllegalArgumentException("Improperly formatted Authorization Header: " + value);
+  }
+
+  boolean isSession() {
+    return this.nonce == null;
+  }
+
+  /**
+   * Parses an {@code accessKey:digest:date:nonce} credential.
+   */
+  static AuthorizationHeader parse(String value) {
+    return parse(value, 0, value.length());
+  }
+
+  private static AuthorizationHeader parse(String value, int start, int end) {
+    int first = value.indexOf(':', start);
+    int second = first < 0 ? -1 : value.indexOf(':', first + 1);
+    int third = second < 0 ? -1 : value.indexOf(':', second + 1);
+    if (third < 0 || value.indexOf(':', third + 1) >= 0 || hasSpace(value, start, end)) {
+      throw new IllegalArgumentException("Improperly formatted Authorization Header: " + value);
+    }
+    return new AuthorizationHeader(value.substring(start, first), value.substring(first + 1, second),
+            value.substring(second + 1, third), value.substring(third + 1, end));
+  }
+
+  private static boolean hasSpace(String value, int start, int end) {
+    int space = value.indexOf(' ', start);
+    return space >= 0 && space < end;
+  }
+
+  /**
+   * @return the date in milliseconds. Epoch seconds or milliseconds are read
+   * in place, anything else goes through {@link DateTime#parseDateTimeString}.
+   */
+  long getTimestamp() {
+    String date = this.date;
+    int length = date.length();
+    if (length == 0 || length > 13) {
+      return DateTime.parseDateTimeString(date, "UTC");
+    }
+    long timestamp = 0;
+    for (int i = 0; i < length; i++) {
+      char c = date.charAt(i);
+      if (c < '0' || c > '9') {
+        return DateTime.parseDateTimeString(date, "UTC");
+      }
+      timestamp = timestamp * 10 + (c - '0');
+    }
+    // as in DateTime, ten digits or fewer are seconds
+    return length <= 10 ? timestamp * 1000 : timestamp;
+  }
+}
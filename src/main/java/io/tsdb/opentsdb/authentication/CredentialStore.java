@@ -0,0 +1,155 @@
+package io.tsdb.opentsdb.authentication;
+/**
+ * Copyright 2015 The opentsdb Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Access keys and their secrets, read on every authentication. Readers see
+ * an immutable snapshot through a volatile field and never block; writers
+ * build a new snapshot and swap it in, serialized among themselves.
+ * <p/>
+ * Keys can be bulk loaded from a file of {@code accessKey secret} lines and
+ * reloaded whenever the file changes. Keys from the file replace the ones
+ * loaded from it before, while keys stored individually are kept.
+ */
+public class CredentialStore {
+  private static final Logger LOG = LoggerFactory.getLogger(CredentialStore.class);
+
+  private volatile Map<String, String> snapshot = Collections.emptyMap();
+  private Set<String> fileKeys = Collections.emptySet();
+  private ScheduledExecutorService watcher;
+  private long loadedModified = -1;
+  private long loadedSize = -1;
+
+  public String get(String accessKey) {
+    return this.snapshot.get(accessKey);
+  }
+
+  public int size() {
+    return this.snapshot.size();
+  }
+
+  public synchronized void put(String accessKey, String secret) {
+    Map<String, String> next = new HashMap<String, String>(this.snapshot);
+    next.put(accessKey, secret);
+    this.snapshot = Collections.unmodifiableMap(next);
+  }
+
+  public synchronized boolean remove(String accessKey) {
+    if (!this.snapshot.containsKey(accessKey)) {
+      return false;
+    }
+    Map<String, String> next = new HashMap<String, String>(this.snapshot);
+    next.remove(accessKey);
+    this.snapshot = Collections.unmodifiableMap(next);
+    return true;
+  }
+
+  /**
+   * Replaces the keys loaded from a file before with the ones in this file,
+   * in a single swap.
+   * @return the number of keys loaded
+   */
+  public int load(File file) throws IOException {
+    // parse outside the lock so writers only wait for the swap
+    Map<String, String> loaded = new HashMap<String, String>();
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      int number = 0;
+      while ((line = reader.readLine()) != null) {
+        number++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] parts = line.split("\\s+");
+        if (parts.length != 2) {
+          throw new IllegalArgumentException("Credentials must look like 'accessKey secret' at "
+                  + file + ":" + number);
+        }
+        loaded.put(parts[0], parts[1]);
+      }
+    }
+    synchronized (this) {
+      Map<String, String> next = new HashMap<String, String>(this.snapshot);
+      next.keySet().removeAll(this.fileKeys);
+      next.putAll(loaded);
+      this.snapshot = Collections.unmodifiableMap(next);
+      this.fileKeys = new HashSet<String>(loaded.keySet());
+    }
+    return loaded.size();
+  }
+
+  /**
+   * Loads the file now and again every interval in which its modification
+   * time or size changed. A file that fails to load leaves the previous keys
+   * in place.
+   */
+  public synchronized void watch(final File file, long intervalSeconds) throws IOException {
+    reload(file);
+    this.watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "CredentialStoreWatcher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.watcher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          reload(file);
+        } catch (Exception e) {
+          LOG.error("Unable to reload credentials from " + file + ": " + e);
+        }
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  public synchronized void stop() {
+    if (this.watcher != null) {
+      this.watcher.shutdown();
+      this.watcher = null;
+    }
+  }
+
+  private void reload(File file) throws IOException {
+    long modified = file.lastModified();
+    long size = file.length();
+    if (modified == this.loadedModified && size == this.loadedSize) {
+      return;
+    }
+    int loaded = load(file);
+    this.loadedModified = modified;
+    this.loadedSize = size;
+    LOG.info("Loaded " + loaded + " credentials from " + file);
+  }
+}
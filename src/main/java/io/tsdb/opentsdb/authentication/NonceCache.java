@@ -0,0 +1,123 @@
+package io.tsdb.opentsdb.authentication;
+/**
+ * Copyright 2015 The opentsdb Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Remembers the nonces of accepted digest requests for as long as their
+ * dates are accepted, so a captured header cannot be replayed. Nonces are
+ * kept on a time wheel of buckets by request date: a replay carries the same
+ * date and lands in the same bucket, and a bucket whose time has passed is
+ * dropped as a whole when its slot is reused rather than scanned.
+ * <p/>
+ * At most {@code maxEntries} nonces are remembered across all buckets, so
+ * the bucket of the current minute, which nearly every request lands in,
+ * can use whatever the others leave free. A request arriving when the cache
+ * is full is refused, since it could not be checked again later.
+ */
+public class NonceCache {
+  // the size of a dropped bucket, which late adds cannot bring back up to 0
+  private static final int DROPPED = Integer.MIN_VALUE / 2;
+  private final long bucketMillis;
+  private final int maxEntries;
+  private final AtomicInteger live = new AtomicInteger(0);
+  private final AtomicReferenceArray<Bucket> wheel;
+  private final AtomicLong replayed = new AtomicLong(0);
+  private final AtomicLong refused = new AtomicLong(0);
+
+  private static final class Bucket {
+    private final long tick;
+    private final Set<String> nonces = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger size = new AtomicInteger(0);
+
+    private Bucket(long tick) {
+      this.tick = tick;
+    }
+  }
+
+  /**
+   * @param windowMillis how far before or after now a request date is accepted
+   * @param bucketMillis the span of dates sharing a bucket
+   * @param maxEntries the most nonces remembered at once
+   */
+  public NonceCache(long windowMillis, long bucketMillis, int maxEntries) {
+    if (windowMillis <= 0 || bucketMillis <= 0 || maxEntries <= 0) {
+      throw new IllegalArgumentException("Nonce window, bucket span and capacity must be positive");
+    }
+    this.bucketMillis = bucketMillis;
+    // enough slots that no two live buckets on either side of now share one
+    int buckets = (int) (2 * ((windowMillis + bucketMillis - 1) / bucketMillis)) + 2;
+    this.maxEntries = maxEntries;
+    this.wheel = new AtomicReferenceArray<Bucket>(buckets);
+  }
+
+  /**
+   * Records a nonce for a request date the caller has already accepted.
+   * @return false if the nonce was seen before with that date, or cannot be remembered
+   */
+  public boolean add(String accessKey, String nonce, long timestamp) {
+    long tick = Math.floorDiv(timestamp, this.bucketMillis);
+    int slot = (int) Math.floorMod(tick, (long) this.wheel.length());
+    Bucket bucket;
+    while (true) {
+      bucket = this.wheel.get(slot);
+      if (bucket != null && bucket.tick == tick) {
+        break;
+      }
+      if (bucket != null && bucket.tick > tick) {
+        // older than anything still remembered
+        this.refused.incrementAndGet();
+        return false;
+      }
+      // the slot's time has passed; whoever loses the race re-reads the winner
+      if (this.wheel.compareAndSet(slot, bucket, new Bucket(tick)) && bucket != null) {
+        this.live.addAndGet(-Math.max(0, bucket.size.getAndSet(DROPPED)));
+      }
+    }
+    String key = accessKey + ":" + nonce;
+    if (!bucket.nonces.add(key)) {
+      this.replayed.incrementAndGet();
+      return false;
+    }
+    if (this.live.incrementAndGet() > this.maxEntries) {
+      this.live.decrementAndGet();
+      bucket.nonces.remove(key);
+      this.refused.incrementAndGet();
+      return false;
+    }
+    if (bucket.size.getAndIncrement() < 0) {
+      // the bucket was dropped meanwhile, and its nonces no longer count
+      this.live.decrementAndGet();
+    }
+    return true;
+  }
+
+  public long getReplayed() {
+    return this.replayed.get();
+  }
+
+  public long getRefused() {
+    return this.refused.get();
+  }
+
+  public int size() {
+    return this.live.get();
+  }
+}
@@ -0,0 +1,177 @@
+package io.tsdb.opentsdb.authentication;
+/**
+ * Copyright 2015 The opentsdb Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived sessions opened by a successful digest authentication. The
+ * session token for an access key and date is an HMAC of both under the
+ * access key's secret, so the client can derive it without the server
+ * having to send it back, but it is only honored once a digest with that
+ * date was accepted and until the session expires. Checking a token is a
+ * map lookup and a string comparison, without any hashing.
+ * <p/>
+ * A session remembers the secret it was opened with, so it stops working as
+ * soon as its access key is removed or given a new secret.
+ * <p/>
+ * Every session lives for the same time, so the order sessions were opened
+ * in is the order they expire in. Opening one drops the expired sessions
+ * from the front of that order, and the oldest live ones if the cache is
+ * still full, without scanning the rest.
+ */
+public class SessionCache {
+  private final long ttlMillis;
+  private final int maxSessions;
+  private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+  // both only change under the cache's lock
+  private final ArrayDeque<Session> order = new ArrayDeque<Session>();
+  private final Map<String, Set<String>> byAccessKey = new HashMap<String, Set<String>>();
+  private final AtomicLong opened = new AtomicLong(0);
+  private final AtomicLong accepted = new AtomicLong(0);
+  private final AtomicLong rejected = new AtomicLong(0);
+
+  private static final class Session {
+    private final String key;
+    private final String accessKey;
+    private final String secret;
+    private final String token;
+    private final long expires;
+
+    private Session(String key, String accessKey, String secret, String token, long expires) {
+      this.key = key;
+      this.accessKey = accessKey;
+      this.secret = secret;
+      this.token = token;
+      this.expires = expires;
+    }
+  }
+
+  public SessionCache(long ttlMillis, int maxSessions) {
+    if (ttlMillis <= 0 || maxSessions <= 0) {
+      throw new IllegalArgumentException("Session lifetime and capacity must be positive");
+    }
+    this.ttlMillis = ttlMillis;
+    this.maxSessions = maxSessions;
+  }
+
+  /**
+   * Opens a session for a digest just accepted with this date, unless one is
+   * already open, closing the oldest session if the cache is full.
+   */
+  public void open(String accessKey, String secret, String date, long now) {
+    String key = accessKey + ":" + date;
+    Session session = this.sessions.get(key);
+    if (session != null && session.expires > now && session.secret.equals(secret)) {
+      return;
+    }
+    String token = AuthenticationUtil.createSessionToken(accessKey, secret, date);
+    session = new Session(key, accessKey, secret, token, now + this.ttlMillis);
+    synchronized (this) {
+      while (!this.order.isEmpty()
+              && (this.order.peek().expires <= now || this.sessions.size() >= this.maxSessions)) {
+        close(this.order.poll());
+      }
+      Session replaced = this.sessions.put(key, session);
+      if (replaced != null) {
+        unindex(replaced);
+      }
+      this.order.add(session);
+      Set<String> keys = this.byAccessKey.get(accessKey);
+      if (keys == null) {
+        keys = new HashSet<String>();
+        this.byAccessKey.put(accessKey, keys);
+      }
+      keys.add(key);
+    }
+    this.opened.incrementAndGet();
+  }
+
+  /**
+   * @param secret the access key's current secret, or null if it has none
+   */
+  public boolean verify(String accessKey, String date, String token, String secret, long now) {
+    Session session = this.sessions.get(accessKey + ":" + date);
+    if (session == null || session.expires <= now || !session.secret.equals(secret)
+            || !constantTimeEquals(session.token, token)) {
+      this.rejected.incrementAndGet();
+      return false;
+    }
+    this.accepted.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Closes every session of an access key.
+   */
+  public synchronized void revoke(String accessKey) {
+    Set<String> keys = this.byAccessKey.remove(accessKey);
+    if (keys != null) {
+      for (String key : keys) {
+        this.sessions.remove(key);
+      }
+    }
+  }
+
+  public int size() {
+    return this.sessions.size();
+  }
+
+  public long getOpened() {
+    return this.opened.get();
+  }
+
+  public long getAccepted() {
+    return this.accepted.get();
+  }
+
+  public long getRejected() {
+    return this.rejected.get();
+  }
+
+  /**
+   * Drops a session unless it was already replaced or revoked. Called holding
+   * the cache's lock.
+   */
+  private void close(Session session) {
+    if (this.sessions.remove(session.key, session)) {
+      unindex(session);
+    }
+  }
+
+  private void unindex(Session session) {
+    Set<String> keys = this.byAccessKey.get(session.accessKey);
+    if (keys != null && keys.remove(session.key) && keys.isEmpty()) {
+      this.byAccessKey.remove(session.accessKey);
+    }
+  }
+
+  private static boolean constantTimeEquals(String a, String b) {
+    if (a.length() != b.length()) {
+      return false;
+    }
+    int diff = 0;
+    for (int i = 0; i < a.length(); i++) {
+      diff |= a.charAt(i) ^ b.charAt(i);
+    }
+    return diff == 0;
+  }
+}
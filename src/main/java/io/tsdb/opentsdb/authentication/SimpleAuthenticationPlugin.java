@@ -17,14 +17,15 @@ import com.stumbleupon.async.Deferred;
 import net.opentsdb.auth.AuthenticationPlugin;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.stats.StatsCollector;
-import net.opentsdb.utils.DateTime;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.kohsuke.MetaInfServices;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.io.File;
+import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @since 2.3
@@ -32,9 +33,12 @@ import java.util.Map;
 @MetaInfServices
 public class SimpleAuthenticationPlugin extends AuthenticationPlugin {
     private static final Logger LOG = LoggerFactory.getLogger(SimpleAuthenticationPlugin.class);
-    private Map<String, String> authDB = new HashMap();
+    private static final long WINDOW = TimeUnit.MINUTES.toMillis(20);
+    private final CredentialStore authDB = new CredentialStore();
     private String adminAccessKey = null;
     private String adminSecretKey = null;
+    private NonceCache nonces = new NonceCache(WINDOW, TimeUnit.MINUTES.toMillis(1), 1000000);
+    private SessionCache sessions = null;
 
     @Override
     public void initialize(TSDB tsdb) {
@@ -42,10 +46,37 @@ public class SimpleAuthenticationPlugin extends AuthenticationPlugin {
         this.adminAccessKey = tsdb.getConfig().getString("tsd.core.authentication.admin_access_key");
         this.adminSecretKey = tsdb.getConfig().getString("tsd.core.authentication.admin_access_secret");
         storeCredentials(this.adminAccessKey, this.adminSecretKey);
+        if (tsdb.getConfig().hasProperty("tsd.core.authentication.max_nonces")) {
+            int maxNonces = tsdb.getConfig().getInt("tsd.core.authentication.max_nonces");
+            this.nonces = new NonceCache(WINDOW, TimeUnit.MINUTES.toMillis(1), maxNonces);
+        }
+        if (tsdb.getConfig().hasProperty("tsd.core.authentication.session_ttl")
+                && tsdb.getConfig().getLong("tsd.core.authentication.session_ttl") > 0) {
+            long ttl = tsdb.getConfig().getLong("tsd.core.authentication.session_ttl");
+            int maxSessions = 100000;
+            if (tsdb.getConfig().hasProperty("tsd.core.authentication.max_sessions")) {
+                maxSessions = tsdb.getConfig().getInt("tsd.core.authentication.max_sessions");
+            }
+            this.sessions = new SessionCache(TimeUnit.SECONDS.toMillis(ttl), maxSessions);
+            LOG.info("Opening sessions of " + ttl + " seconds after digest authentication");
+        }
+        if (tsdb.getConfig().hasProperty("tsd.core.authentication.credentials_file")) {
+            String file = tsdb.getConfig().getString("tsd.core.authentication.credentials_file");
+            long interval = 30;
+            if (tsdb.getConfig().hasProperty("tsd.core.authentication.credentials_reload_interval")) {
+                interval = tsdb.getConfig().getLong("tsd.core.authentication.credentials_reload_interval");
+            }
+            try {
+                this.authDB.watch(new File(file), interval);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Unable to load credentials from " + file, e);
+            }
+        }
     }
 
     @Override
     public Deferred<Object> shutdown() {
+        this.authDB.stop();
         return null;
     }
 
@@ -56,7 +87,16 @@ public class SimpleAuthenticationPlugin extends AuthenticationPlugin {
 
     @Override
     public void collectStats(StatsCollector collector) {
-
+        collector.record("auth.credentials", this.authDB.size());
+        collector.record("auth.nonce.cached", this.nonces.size());
+        collector.record("auth.nonce.rejected", this.nonces.getReplayed(), "reason=replayed");
+        collector.record("auth.nonce.rejected", this.nonces.getRefused(), "reason=capacity");
+        if (this.sessions != null) {
+            collector.record("auth.sessions.open", this.sessions.size());
+            collector.record("auth.sessions.opened", this.sessions.getOpened());
+            collector.record("auth.sessions.accepted", this.sessions.getAccepted());
+            collector.record("auth.sessions.rejected", this.sessions.getRejected());
+        }
     }
 
     @Override
@@ -67,9 +107,8 @@ public class SimpleAuthenticationPlugin extends AuthenticationPlugin {
         } else if (command[0].equals("auth")) {
             if (command[1].equals(AuthenticationUtil.algo.trim().toLowerCase())) {
                 // Command should be 'auth hmacsha256 accessKey:digest:epoch:nonce'
-                Map<String, String> fields = AuthenticationUtil.stringToMap(command[2], ":");
                 LOG.debug("Validating Digest Credentials");
-                ret = this.authenticate((String) fields.get("accessKey"), fields);
+                ret = this.authenticate(AuthorizationHeader.parse(command[2]));
             } else if (command[1].equals("basic")) {
                 // Command should be 'auth basic accessKey secretAccessKey'
                 LOG.debug("Validating Basic Credentials");
@@ -84,28 +123,21 @@ public class SimpleAuthenticationPlugin extends AuthenticationPlugin {
     }
 
     //Authorization: OpenTSDB accessKey:digest:epoch:nonce
+    //Authorization: OpenTSDB-Session accessKey:epoch:token
     @Override
     public Boolean authenticateHTTP(final HttpRequest req) {
-        Iterable<Map.Entry<String,String>> headers = req.headers();
-        Iterator entries = headers.iterator();
-        while (entries.hasNext()) {
-            Map.Entry thisEntry = (Map.Entry) entries.next();
-            String key = (String) thisEntry.getKey();
-            String value = (String) thisEntry.getValue();
-            if (key.trim().toLowerCase().equals("authorization")) {
-                String[] fieldsRaw = value.split(" ");
-                if (fieldsRaw.length == 2 && fieldsRaw[0].trim().toLowerCase().equals("opentsdb")) {
-                    String[] fieldsArray = fieldsRaw[1].trim().toLowerCase().split(":");
-                    Map<String, String> fields = AuthenticationUtil.stringToMap(fieldsRaw[1], ":");
-                    LOG.debug("Validating Digest Credentials");
-                    return this.authenticate((String) fields.get("accessKey"), fields);
-                } else {
-                    throw new IllegalArgumentException("Improperly formatted Authorization Header: " + value);
-                }
-            }
+        // header names are matched case insensitively
+        String value = req.headers().get(HttpHeaders.Names.AUTHORIZATION);
+        if (value == null) {
+            LOG.info("No Authorization Header Found");
+            return false;
         }
-        LOG.info("No Authorization Header Found");
-        return false;
+        AuthorizationHeader header = AuthorizationHeader.parseHttp(value);
+        if (header.isSession()) {
+            return this.authenticateSession(header);
+        }
+        LOG.debug("Validating Digest Credentials");
+        return this.authenticate(header);
     }
 
     @Override
@@ -123,20 +155,35 @@ public class SimpleAuthenticationPlugin extends AuthenticationPlugin {
         return this.removeCredentials(adminAccessKey, adminSecretKey, accessKey);
     }
 
-    private Boolean authenticate(String accessKey, Map fields) {
+    private Boolean authenticate(AuthorizationHeader header) {
+        String accessKey = header.accessKey;
         try {
-            AuthenticationUtil.validateFields(fields);
-            String providedDigest = (String) fields.get("digest");
-            LOG.debug("Authenticating " + accessKey + " " + providedDigest);
-            Long providedTimestamp = DateTime.parseDateTimeString((String) fields.get("date"), "UTC");
-            Long minimumTimestamp = DateTime.parseDateTimeString("20m-ago", "UTC");
-            if (providedTimestamp < minimumTimestamp) {
-                throw new IllegalArgumentException("Provided timestamp: " + (String) fields.get("date") + " is too old.");
+            LOG.debug("Authenticating {} {}", accessKey, header.digest);
+            long providedTimestamp = header.getTimestamp();
+            // plain arithmetic on the clock, rather than parsing "20m-ago" every time
+            long now = System.currentTimeMillis();
+            if (providedTimestamp < now - WINDOW) {
+                throw new IllegalArgumentException("Provided timestamp: " + header.date + " is too old.");
+            } else if (providedTimestamp > now + WINDOW) {
+                // its nonce could not be remembered for as long as it would be accepted
+                throw new IllegalArgumentException("Provided timestamp: " + header.date + " is too far in the future.");
             } else {
-                String calculatedDigest = AuthenticationUtil.createDigest(new EmbeddedAccessKeyPair(accessKey, authDB.get(accessKey)), fields);
-                LOG.debug("Calc: " + calculatedDigest);
-                LOG.debug("Prov: " + providedDigest);
-                return AuthenticationUtil.validateCredentials(accessKey, calculatedDigest, accessKey, providedDigest);
+                String secret = authDB.get(accessKey);
+                String calculatedDigest = AuthenticationUtil.createDigest(accessKey, secret, header.date, header.nonce);
+                LOG.debug("Calc: {}", calculatedDigest);
+                LOG.debug("Prov: {}", header.digest);
+                if (!AuthenticationUtil.validateCredentials(accessKey, calculatedDigest, accessKey, header.digest)) {
+                    return false;
+                }
+                // only nonces of valid requests are remembered, so forgeries cannot fill the cache
+                if (!this.nonces.add(accessKey, header.nonce, providedTimestamp)) {
+                    LOG.warn("Rejecting reused nonce for: " + accessKey);
+                    return false;
+                }
+                if (this.sessions != null) {
+                    this.sessions.open(accessKey, secret, header.date, now);
+                }
+                return true;
             }
         } catch (Exception e) {
             LOG.error("Exception: " + e);
@@ -144,8 +191,18 @@ public class SimpleAuthenticationPlugin extends AuthenticationPlugin {
         }
     }
 
+    private Boolean authenticateSession(AuthorizationHeader header) {
+        if (this.sessions == null) {
+            LOG.info("Sessions are disabled, rejecting session for: " + header.accessKey);
+            return false;
+        }
+        LOG.debug("Validating Session for {}", header.accessKey);
+        return this.sessions.verify(header.accessKey, header.date, header.digest,
+                authDB.get(header.accessKey), System.currentTimeMillis());
+    }
+
     private Boolean authenticate(String providedAccessKey, String providedSecretKey) {
-        String correctSecretKey = (String) authDB.get(providedAccessKey);
+        String correctSecretKey = authDB.get(providedAccessKey);
         return AuthenticationUtil.validateCredentials(providedAccessKey, correctSecretKey, providedAccessKey, providedSecretKey);
     }
 
@@ -156,6 +213,10 @@ public class SimpleAuthenticationPlugin extends AuthenticationPlugin {
     private Boolean storeCredentials(String accessKey, String accessSecretKey) {
         try {
             authDB.put(accessKey, accessSecretKey);
+            AuthenticationUtil.invalidate(accessKey);
+            if (this.sessions != null) {
+                this.sessions.revoke(accessKey);
+            }
         } catch (Exception e) {
             LOG.error("Exception: " + e);
             return false;
@@ -168,6 +229,10 @@ public class SimpleAuthenticationPlugin extends AuthenticationPlugin {
         try {
             if (authenticateAdmin(adminAccessKey, adminSecretKey)) {
                 authDB.remove(accessKey);
+                AuthenticationUtil.invalidate(accessKey);
+                if (this.sessions != null) {
+                    this.sessions.revoke(accessKey);
+                }
             } else {
                 return false;
             }
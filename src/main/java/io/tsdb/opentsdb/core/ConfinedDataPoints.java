@@ -0,0 +1,55 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * A {@link DataPoints} that only one thread ever adds to, so adding takes
+ * no lock. Any other thread must make sure the writer is done before it
+ * reads or closes the accumulator, as the per-thread partials of a rollup
+ * window do.
+ */
+public class ConfinedDataPoints extends DataPoints {
+
+  public ConfinedDataPoints(final int[] series, final long timestamp, final QuantileSketch sketch) {
+    super(series, timestamp, sketch);
+  }
+
+  @Override
+  public boolean addDatapoint(final long value) {
+    return accumulate((double) value);
+  }
+
+  @Override
+  public boolean addDatapoint(final double value) {
+    return accumulate(value);
+  }
+
+  @Override
+  public boolean addMember(final SeriesKey member, final double value) {
+    return accumulateMember(member, value);
+  }
+
+  @Override
+  public boolean addCounter(final long timestamp, final double value, final double counterMax,
+                            final double resetValue) {
+    return accumulateCounter(timestamp, value, counterMax, resetValue);
+  }
+
+  @Override
+  public void retain(final long timestamp, final double value) {
+    keep(timestamp, value);
+  }
+}
@@ -0,0 +1,524 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming accumulator for a single series window. Only the count, sum,
+ * min, max and last value are kept, so memory is constant no matter how
+ * many datapoints land in the window and each update is O(1). An optional
+ * {@link QuantileSketch} adds percentiles at a fixed size per series. The
+ * series itself is held as ids from a {@link TagDictionary}.
+ * <p/>
+ * Monotonic counters added through {@link #addCounter} additionally keep
+ * their first and latest reading and the increase between them, with
+ * resets and wraparounds taken out, from which the window's rate follows.
+ * Series that need exact aggregates also {@link #retain} their raw
+ * datapoints in a {@link GorillaStream}.
+ * <p/>
+ * An accumulator that folds several series into one group keeps the sum
+ * and count of each of its members, so the group's total is the sum of its
+ * members' averages rather than of every datapoint they sent.
+ */
+public class DataPoints {
+  private long timestamp;
+  private int[] series;
+  private long count = 0;
+  private double sum = 0;
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+  private double last = Double.NaN;
+  private QuantileSketch sketch;
+  private boolean closed = false;
+  private long firstTime = -1;
+  private double firstValue;
+  private long lastTime = -1;
+  private double lastValue;
+  private double increase = 0;
+  private double counterMax = 0;
+  private double resetValue = 0;
+  private long firedCount = 0;
+  private GorillaStream raw;
+  private HashMap<SeriesKey, double[]> members;
+
+  public DataPoints(final int[] series, final long timestamp) {
+    this(series, timestamp, null);
+  }
+
+  public DataPoints(final int[] series, final long timestamp, final QuantileSketch sketch) {
+    this.series = series;
+    this.timestamp = timestamp;
+    this.sketch = sketch;
+  }
+
+  /**
+   * Rebuilds an accumulator from its stored summary.
+   */
+  public DataPoints(final int[] series, final long timestamp, final long count, final double sum,
+                    final double min, final double max, final double last) {
+    this(series, timestamp, count, sum, min, max, last, null);
+  }
+
+  public DataPoints(final int[] series, final long timestamp, final long count, final double sum,
+                    final double min, final double max, final double last, final QuantileSketch sketch) {
+    this(series, timestamp, sketch);
+    this.count = count;
+    this.sum = sum;
+    this.min = min;
+    this.max = max;
+    this.last = last;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * @return the series encoded by the publisher's {@link TagDictionary}
+   */
+  public int[] getSeries() {
+    return series;
+  }
+
+  /**
+   * @return the sketch, or null if this window does not keep one
+   */
+  public QuantileSketch getSketch() {
+    return sketch;
+  }
+
+  /**
+   * @return a consistent point-in-time copy of this accumulator
+   */
+  public synchronized DataPoints copy() {
+    DataPoints copy = new DataPoints(this.series, this.timestamp, this.count, this.sum, this.min, this.max,
+            this.last, this.sketch == null ? null : this.sketch.copy());
+    copy.restoreCounter(this.firstTime, this.firstValue, this.lastTime, this.lastValue, this.increase,
+            this.counterMax, this.resetValue);
+    if (this.raw != null) {
+      copy.raw = this.raw.copy();
+    }
+    if (this.members != null) {
+      for (Map.Entry<SeriesKey, double[]> member : this.members.entrySet()) {
+        copy.addToMember(member.getKey(), member.getValue()[0], member.getValue()[1]);
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * @return a copy if datapoints were added since the last call, or null
+   */
+  public synchronized DataPoints copyIfChanged() {
+    if (this.count == this.firedCount) {
+      return null;
+    }
+    this.firedCount = this.count;
+    return copy();
+  }
+
+  public synchronized long getCount() {
+    return this.count;
+  }
+
+  public synchronized double getSum() {
+    return this.sum;
+  }
+
+  public synchronized double getMin() {
+    return this.min;
+  }
+
+  public synchronized double getMax() {
+    return this.max;
+  }
+
+  public synchronized double getLast() {
+    return this.last;
+  }
+
+  /**
+   * Adds a value to this window.
+   * @return false if the window has already been closed and the caller
+   * must store the value elsewhere
+   */
+  public synchronized boolean addDatapoint(final long value) {
+    return accumulate((double) value);
+  }
+
+  /**
+   * Adds a value to this window.
+   * @return false if the window has already been closed and the caller
+   * must store the value elsewhere
+   */
+  public synchronized boolean addDatapoint(final double value) {
+    return accumulate(value);
+  }
+
+  protected final boolean accumulate(final double value) {
+    if (this.closed) {
+      return false;
+    }
+    this.count++;
+    this.sum += value;
+    if (value < this.min) {
+      this.min = value;
+    }
+    if (value > this.max) {
+      this.max = value;
+    }
+    this.last = value;
+    if (this.sketch != null) {
+      this.sketch.add(value);
+    }
+    return true;
+  }
+
+  /**
+   * Adds a value of one member of a grouped series to this window.
+   * @return false if the window has already been closed
+   */
+  public synchronized boolean addMember(final SeriesKey member, final double value) {
+    return accumulateMember(member, value);
+  }
+
+  protected final boolean accumulateMember(final SeriesKey member, final double value) {
+    if (!accumulate(value)) {
+      return false;
+    }
+    addToMember(member, value, 1);
+    return true;
+  }
+
+  /**
+   * Restores the sum and count of a member of a grouped series.
+   */
+  public synchronized void restoreMember(final SeriesKey member, final double sum, final double count) {
+    addToMember(member, sum, count);
+  }
+
+  private void addToMember(final SeriesKey member, final double sum, final double count) {
+    if (this.members == null) {
+      this.members = new HashMap<SeriesKey, double[]>();
+    }
+    double[] stats = this.members.get(member);
+    if (stats == null) {
+      stats = new double[2];
+      this.members.put(member, stats);
+    }
+    stats[0] += sum;
+    stats[1] += count;
+  }
+
+  /**
+   * @return the sum and count of each member of a grouped series
+   */
+  public synchronized Map<SeriesKey, double[]> getMembers() {
+    if (this.members == null) {
+      return Collections.emptyMap();
+    }
+    return this.members;
+  }
+
+  /**
+   * @return the sum of the members' averages for a grouped series, and the
+   * plain sum otherwise
+   */
+  public synchronized double getTotal() {
+    if (this.members == null) {
+      return this.sum;
+    }
+    double total = 0;
+    for (double[] stats : this.members.values()) {
+      total += stats[0] / stats[1];
+    }
+    return total;
+  }
+
+  /**
+   * Adds a reading of a monotonic counter to this window. A reading lower
+   * than the previous one is a wraparound if a counter maximum is given and
+   * a reset to zero otherwise. A wraparound that would imply a rate above
+   * the reset value is taken to be a reset as well. Readings older than the
+   * latest one only count towards the gauge statistics.
+   * @param timestamp the reading's time in milliseconds
+   * @param counterMax the value the counter wraps at, or 0 if it does not
+   * @param resetValue the highest plausible rate per second, or 0 for none
+   * @return false if the window has already been closed
+   */
+  public synchronized boolean addCounter(final long timestamp, final double value, final double counterMax,
+                                         final double resetValue) {
+    return accumulateCounter(timestamp, value, counterMax, resetValue);
+  }
+
+  protected final boolean accumulateCounter(final long timestamp, final double value, final double counterMax,
+                                            final double resetValue) {
+    if (!accumulate(value)) {
+      return false;
+    }
+    this.counterMax = counterMax;
+    this.resetValue = resetValue;
+    if (this.lastTime < 0) {
+      this.firstTime = timestamp;
+      this.firstValue = value;
+    } else if (timestamp > this.lastTime) {
+      this.increase += increment(this.lastValue, value, timestamp - this.lastTime);
+    } else {
+      return true;
+    }
+    this.lastTime = timestamp;
+    this.lastValue = value;
+    return true;
+  }
+
+  private double increment(final double previous, final double value, final long millis) {
+    if (value >= previous) {
+      return value - previous;
+    }
+    if (this.counterMax > 0) {
+      double wrapped = this.counterMax - previous + value;
+      if (this.resetValue <= 0 || wrapped * 1000 / millis <= this.resetValue) {
+        return wrapped;
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Keeps the raw datapoint for exact aggregates, in addition to whatever
+   * was accumulated for it.
+   * @param timestamp the datapoint's time in milliseconds
+   */
+  public synchronized void retain(final long timestamp, final double value) {
+    keep(timestamp, value);
+  }
+
+  protected final void keep(final long timestamp, final double value) {
+    if (this.raw == null) {
+      this.raw = new GorillaStream();
+    }
+    this.raw.append(timestamp, value);
+  }
+
+  /**
+   * @return the retained datapoints, or null if none were retained
+   */
+  public synchronized GorillaStream getRaw() {
+    return this.raw;
+  }
+
+  public synchronized void setRaw(final GorillaStream raw) {
+    this.raw = raw;
+  }
+
+  /**
+   * @return the exact value at the quantile of the retained datapoints,
+   * interpolating between the two closest ones, or NaN if there are none
+   */
+  public synchronized double getExactQuantile(final double quantile) {
+    if (this.raw == null || this.raw.getCount() == 0) {
+      return Double.NaN;
+    }
+    double[] values = this.raw.getValues();
+    Arrays.sort(values);
+    double rank = quantile * (values.length - 1);
+    int lower = (int) Math.floor(rank);
+    int upper = (int) Math.ceil(rank);
+    return values[lower] + (values[upper] - values[lower]) * (rank - lower);
+  }
+
+  /**
+   * @return the number of distinct retained values, or NaN if none were
+   * retained
+   */
+  public synchronized double getDistinctCount() {
+    if (this.raw == null || this.raw.getCount() == 0) {
+      return Double.NaN;
+    }
+    double[] values = this.raw.getValues();
+    Arrays.sort(values);
+    int distinct = 1;
+    for (int i = 1; i < values.length; i++) {
+      if (Double.compare(values[i], values[i - 1]) != 0) {
+        distinct++;
+      }
+    }
+    return distinct;
+  }
+
+  /**
+   * @return the counter's average increase per second over this window, or
+   * NaN if it has fewer than two readings
+   */
+  public synchronized double getRate() {
+    if (this.lastTime <= this.firstTime) {
+      return Double.NaN;
+    }
+    return this.increase * 1000 / (this.lastTime - this.firstTime);
+  }
+
+  /**
+   * Restores the counter state of an accumulator rebuilt from its summary.
+   */
+  public synchronized void restoreCounter(final long firstTime, final double firstValue, final long lastTime,
+                                          final double lastValue, final double increase,
+                                          final double counterMax, final double resetValue) {
+    this.firstTime = firstTime;
+    this.firstValue = firstValue;
+    this.lastTime = lastTime;
+    this.lastValue = lastValue;
+    this.increase = increase;
+    this.counterMax = counterMax;
+    this.resetValue = resetValue;
+  }
+
+  public synchronized long getFirstTime() {
+    return this.firstTime;
+  }
+
+  public synchronized double getFirstValue() {
+    return this.firstValue;
+  }
+
+  public synchronized long getLastTime() {
+    return this.lastTime;
+  }
+
+  public synchronized double getLastValue() {
+    return this.lastValue;
+  }
+
+  public synchronized double getIncrease() {
+    return this.increase;
+  }
+
+  public synchronized double getCounterMax() {
+    return this.counterMax;
+  }
+
+  public synchronized double getResetValue() {
+    return this.resetValue;
+  }
+
+  /**
+   * Folds a finer window's summary into this one, as if all of its
+   * datapoints had been added here. The other window's last value wins, so
+   * windows must be merged in time order.
+   * @return false if this window has already been closed
+   */
+  public synchronized boolean merge(final DataPoints other) {
+    if (this.closed) {
+      return false;
+    }
+    synchronized (other) {
+      if (other.count == 0) {
+        return true;
+      }
+      this.count += other.count;
+      this.sum += other.sum;
+      this.min = Math.min(this.min, other.min);
+      this.max = Math.max(this.max, other.max);
+      this.last = other.last;
+      if (this.sketch != null && other.sketch != null) {
+        this.sketch.merge(other.sketch);
+      }
+      if (other.firstTime >= 0) {
+        mergeCounter(other);
+      }
+      if (other.raw != null) {
+        if (this.raw == null) {
+          this.raw = new GorillaStream();
+        }
+        this.raw.appendAll(other.raw);
+      }
+      if (other.members != null) {
+        for (Map.Entry<SeriesKey, double[]> member : other.members.entrySet()) {
+          addToMember(member.getKey(), member.getValue()[0], member.getValue()[1]);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Combines another window's counter state with this one. Windows that
+   * follow each other also count the increase across the gap between them.
+   * Windows that overlap in time, such as the partials of one series written
+   * by several threads, interleave their readings, so only the earliest and
+   * the latest reading are known to be in order: the increase between those
+   * two is taken, unless either window saw a larger one by itself.
+   */
+  private void mergeCounter(final DataPoints other) {
+    if (this.firstTime < 0) {
+      this.counterMax = other.counterMax;
+      this.resetValue = other.resetValue;
+      this.firstTime = other.firstTime;
+      this.firstValue = other.firstValue;
+      this.lastTime = other.lastTime;
+      this.lastValue = other.lastValue;
+      this.increase = other.increase;
+      return;
+    }
+    long firstTime = Math.min(this.firstTime, other.firstTime);
+    double firstValue = other.firstTime < this.firstTime ? other.firstValue : this.firstValue;
+    long lastTime = Math.max(this.lastTime, other.lastTime);
+    double lastValue = other.lastTime > this.lastTime ? other.lastValue : this.lastValue;
+    if (other.firstTime > this.lastTime) {
+      this.increase += increment(this.lastValue, other.firstValue, other.firstTime - this.lastTime)
+              + other.increase;
+    } else if (other.lastTime < this.firstTime) {
+      this.increase += increment(other.lastValue, this.firstValue, this.firstTime - other.lastTime)
+              + other.increase;
+    } else {
+      double spanned = lastTime > firstTime ? increment(firstValue, lastValue, lastTime - firstTime) : 0;
+      this.increase = Math.max(spanned, Math.max(this.increase, other.increase));
+    }
+    this.firstTime = firstTime;
+    this.firstValue = firstValue;
+    this.lastTime = lastTime;
+    this.lastValue = lastValue;
+  }
+
+  /**
+   * Stops this window from accepting any further datapoints.
+   */
+  public synchronized void close() {
+    this.closed = true;
+  }
+
+  public synchronized double getAvg() {
+    if (this.count == 0) {
+      return 0d;
+    }
+    return this.sum / this.count;
+  }
+
+  /**
+   * @return the estimated value at the quantile, or NaN if this window does
+   * not keep a sketch or is empty
+   */
+  public synchronized double getQuantile(final double quantile) {
+    if (this.sketch == null) {
+      return Double.NaN;
+    }
+    return this.sketch.getQuantile(quantile);
+  }
+
+}
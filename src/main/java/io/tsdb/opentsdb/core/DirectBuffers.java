@@ -0,0 +1,102 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees the memory of direct and memory-mapped buffers right away instead
+ * of when they are collected: through {@code Unsafe.invokeCleaner} from
+ * Java 9 on, and through the buffer's own cleaner before that. Both are
+ * looked up reflectively, so nothing links against internal classes. A
+ * buffer must not be touched again once it has been freed.
+ */
+public final class DirectBuffers {
+  private static final Object UNSAFE;
+  private static final Method INVOKE_CLEANER;
+  private static final Method CLEANER;
+  private static final Method CLEAN;
+
+  static {
+    Object unsafe = null;
+    Method invokeCleaner = null;
+    Method cleaner = null;
+    Method clean = null;
+    try {
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+      Field field = type.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      unsafe = field.get(null);
+    } catch (Exception e) {
+      // before Java 9
+      invokeCleaner = null;
+    }
+    if (invokeCleaner == null) {
+      try {
+        ByteBuffer probe = ByteBuffer.allocateDirect(1);
+        cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+        clean = cleaner.invoke(probe).getClass().getMethod("clean");
+        clean.invoke(cleaner.invoke(probe));
+      } catch (Exception e) {
+        cleaner = null;
+        clean = null;
+      }
+    }
+    UNSAFE = unsafe;
+    INVOKE_CLEANER = invokeCleaner;
+    CLEANER = cleaner;
+    CLEAN = clean;
+  }
+
+  private DirectBuffers() {
+  }
+
+  /**
+   * @return whether buffers can be freed explicitly on this JVM
+   */
+  public static boolean canFree() {
+    return INVOKE_CLEANER != null || CLEAN != null;
+  }
+
+  /**
+   * @return false if the buffer could not be freed and is left to the
+   * garbage collector
+   */
+  public static boolean free(final ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return false;
+    }
+    try {
+      if (INVOKE_CLEANER != null) {
+        INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        return true;
+      }
+      if (CLEAN != null) {
+        Object cleaner = CLEANER.invoke(buffer);
+        if (cleaner != null) {
+          CLEAN.invoke(cleaner);
+          return true;
+        }
+      }
+    } catch (Exception e) {
+      return false;
+    }
+    return false;
+  }
+}
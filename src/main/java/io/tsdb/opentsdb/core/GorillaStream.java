@@ -0,0 +1,272 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Raw datapoints of one series window, compressed as in Facebook's Gorilla:
+ * timestamps as delta-of-deltas in variable width buckets and values as the
+ * XOR with the previous value, storing only its meaningful bits. Regularly
+ * collected series come out at one to two bytes per datapoint. The stream
+ * is append-only and is decoded in a single pass.
+ */
+public class GorillaStream {
+  private long[] words = new long[4];
+  private int bits = 0;
+  private int count = 0;
+  private long previousTime;
+  private long previousDelta;
+  private long previousValue;
+  private int previousLeading = -1;
+  private int previousTrailing;
+
+  public void append(final long timestamp, final double value) {
+    long valueBits = Double.doubleToRawLongBits(value);
+    if (this.count == 0) {
+      write(timestamp, 64);
+      write(valueBits, 64);
+      this.previousTime = timestamp;
+      this.previousDelta = 0;
+      this.previousValue = valueBits;
+      this.count++;
+      return;
+    }
+    long delta = timestamp - this.previousTime;
+    long deltaOfDelta = delta - this.previousDelta;
+    if (deltaOfDelta == 0) {
+      write(0, 1);
+    } else if (deltaOfDelta >= -64 && deltaOfDelta <= 63) {
+      write(0x2, 2);
+      write(deltaOfDelta, 7);
+    } else if (deltaOfDelta >= -256 && deltaOfDelta <= 255) {
+      write(0x6, 3);
+      write(deltaOfDelta, 9);
+    } else if (deltaOfDelta >= -2048 && deltaOfDelta <= 2047) {
+      write(0xE, 4);
+      write(deltaOfDelta, 12);
+    } else {
+      write(0xF, 4);
+      write(deltaOfDelta, 64);
+    }
+    this.previousTime = timestamp;
+    this.previousDelta = delta;
+
+    long xor = valueBits ^ this.previousValue;
+    if (xor == 0) {
+      write(0, 1);
+    } else {
+      int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+      int trailing = Long.numberOfTrailingZeros(xor);
+      if (this.previousLeading >= 0 && leading >= this.previousLeading && trailing >= this.previousTrailing) {
+        // the meaningful bits fit in the previous value's block
+        write(0x2, 2);
+        write(xor >>> this.previousTrailing, 64 - this.previousLeading - this.previousTrailing);
+      } else {
+        int significant = 64 - leading - trailing;
+        write(0x3, 2);
+        write(leading, 5);
+        write(significant - 1, 6);
+        write(xor >>> trailing, significant);
+        this.previousLeading = leading;
+        this.previousTrailing = trailing;
+      }
+    }
+    this.previousValue = valueBits;
+    this.count++;
+  }
+
+  /**
+   * Appends every datapoint of another stream to this one.
+   */
+  public void appendAll(final GorillaStream other) {
+    Decoder decoder = other.decoder();
+    while (decoder.next()) {
+      append(decoder.getTimestamp(), decoder.getValue());
+    }
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @return the compressed size of the stream
+   */
+  public int getBytes() {
+    return (this.bits + 7) / 8;
+  }
+
+  /**
+   * @return every value in the stream, in the order they were appended
+   */
+  public double[] getValues() {
+    double[] values = new double[this.count];
+    Decoder decoder = decoder();
+    for (int i = 0; decoder.next(); i++) {
+      values[i] = decoder.getValue();
+    }
+    return values;
+  }
+
+  public Decoder decoder() {
+    return new Decoder();
+  }
+
+  public GorillaStream copy() {
+    GorillaStream copy = new GorillaStream();
+    copy.words = Arrays.copyOf(this.words, this.words.length);
+    copy.bits = this.bits;
+    copy.count = this.count;
+    copy.previousTime = this.previousTime;
+    copy.previousDelta = this.previousDelta;
+    copy.previousValue = this.previousValue;
+    copy.previousLeading = this.previousLeading;
+    copy.previousTrailing = this.previousTrailing;
+    return copy;
+  }
+
+  public int serializedSize() {
+    return 4 + 4 + 8 * 3 + 4 + 4 + 8 * ((this.bits + 63) / 64);
+  }
+
+  public void serialize(final ByteBuffer buffer) {
+    buffer.putInt(this.count);
+    buffer.putInt(this.bits);
+    buffer.putLong(this.previousTime);
+    buffer.putLong(this.previousDelta);
+    buffer.putLong(this.previousValue);
+    buffer.putInt(this.previousLeading);
+    buffer.putInt(this.previousTrailing);
+    for (int i = 0; i < (this.bits + 63) / 64; i++) {
+      buffer.putLong(this.words[i]);
+    }
+  }
+
+  public static GorillaStream deserialize(final ByteBuffer buffer) {
+    GorillaStream stream = new GorillaStream();
+    stream.count = buffer.getInt();
+    stream.bits = buffer.getInt();
+    stream.previousTime = buffer.getLong();
+    stream.previousDelta = buffer.getLong();
+    stream.previousValue = buffer.getLong();
+    stream.previousLeading = buffer.getInt();
+    stream.previousTrailing = buffer.getInt();
+    stream.words = new long[Math.max(4, (stream.bits + 63) / 64 + 1)];
+    for (int i = 0; i < (stream.bits + 63) / 64; i++) {
+      stream.words[i] = buffer.getLong();
+    }
+    return stream;
+  }
+
+  /**
+   * Writes the low n bits of the value.
+   */
+  private void write(long value, final int n) {
+    if (this.bits + n > this.words.length * 64) {
+      this.words = Arrays.copyOf(this.words, this.words.length * 2);
+    }
+    if (n < 64) {
+      value &= (1L << n) - 1;
+    }
+    int word = this.bits >>> 6;
+    int free = 64 - (this.bits & 63);
+    if (n <= free) {
+      this.words[word] |= value << (free - n);
+    } else {
+      this.words[word] |= value >>> (n - free);
+      this.words[word + 1] |= value << (64 - (n - free));
+    }
+    this.bits += n;
+  }
+
+  /**
+   * Reads the stream back from the start.
+   */
+  public class Decoder {
+    private int position = 0;
+    private int read = 0;
+    private long timestamp;
+    private long delta;
+    private long value;
+    private int leading;
+    private int trailing;
+
+    /**
+     * @return false once every datapoint has been read
+     */
+    public boolean next() {
+      if (this.read == count) {
+        return false;
+      }
+      if (this.read++ == 0) {
+        this.timestamp = read(64);
+        this.value = read(64);
+        return true;
+      }
+      long deltaOfDelta;
+      if (read(1) == 0) {
+        deltaOfDelta = 0;
+      } else if (read(1) == 0) {
+        deltaOfDelta = signed(read(7), 7);
+      } else if (read(1) == 0) {
+        deltaOfDelta = signed(read(9), 9);
+      } else if (read(1) == 0) {
+        deltaOfDelta = signed(read(12), 12);
+      } else {
+        deltaOfDelta = read(64);
+      }
+      this.delta += deltaOfDelta;
+      this.timestamp += this.delta;
+      if (read(1) == 1) {
+        if (read(1) == 1) {
+          this.leading = (int) read(5);
+          int significant = (int) read(6) + 1;
+          this.trailing = 64 - this.leading - significant;
+        }
+        int significant = 64 - this.leading - this.trailing;
+        this.value ^= read(significant) << this.trailing;
+      }
+      return true;
+    }
+
+    public long getTimestamp() {
+      return timestamp;
+    }
+
+    public double getValue() {
+      return Double.longBitsToDouble(this.value);
+    }
+
+    private long read(final int n) {
+      int word = this.position >>> 6;
+      int free = 64 - (this.position & 63);
+      long value;
+      if (n <= free) {
+        value = words[word] >>> (free - n);
+      } else {
+        value = (words[word] << (n - free)) | (words[word + 1] >>> (64 - (n - free)));
+      }
+      this.position += n;
+      return n == 64 ? value : value & ((1L << n) - 1);
+    }
+
+    private long signed(final long value, final int n) {
+      return (value << (64 - n)) >> (64 - n);
+    }
+  }
+}
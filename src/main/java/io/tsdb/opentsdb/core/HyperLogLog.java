@@ -0,0 +1,106 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * HyperLogLog estimate of the number of distinct items offered, using
+ * {@code 2^precision} one byte registers regardless of how many items are
+ * seen. Items are offered as well mixed 64 bit hashes, such as the halves of
+ * a {@link SeriesKey}, so nothing is hashed again here.
+ * <p/>
+ * Registers only ever grow and usually stop changing once the sketch has
+ * seen a few thousand items, so offers check them without locking and only
+ * synchronize on the rare update.
+ */
+public class HyperLogLog {
+  public static final int DEFAULT_PRECISION = 10;
+
+  private final int precision;
+  private final byte[] registers;
+
+  public HyperLogLog() {
+    this(DEFAULT_PRECISION);
+  }
+
+  public HyperLogLog(final int precision) {
+    if (precision < 4 || precision > 18) {
+      throw new IllegalArgumentException("precision must be between 4 and 18: " + precision);
+    }
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  public void offer(final long hash) {
+    int index = (int) (hash >>> (64 - this.precision));
+    // the sentinel bit caps the rank once the remaining bits run out
+    byte rank = (byte) (Long.numberOfLeadingZeros((hash << this.precision) | (1L << (this.precision - 1))) + 1);
+    if (this.registers[index] < rank) {
+      synchronized (this) {
+        if (this.registers[index] < rank) {
+          this.registers[index] = rank;
+        }
+      }
+    }
+  }
+
+  public synchronized long estimate() {
+    int m = this.registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : this.registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double alpha;
+    switch (m) {
+      case 16:
+        alpha = 0.673;
+        break;
+      case 32:
+        alpha = 0.697;
+        break;
+      case 64:
+        alpha = 0.709;
+        break;
+      default:
+        alpha = 0.7213 / (1 + 1.079 / m);
+    }
+    double estimate = alpha * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // linear counting is far more accurate while registers are still empty
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  public synchronized void merge(final HyperLogLog other) {
+    if (other.precision != this.precision) {
+      throw new IllegalArgumentException("Cannot merge sketches of precision "
+              + other.precision + " and " + this.precision);
+    }
+    for (int i = 0; i < this.registers.length; i++) {
+      if (other.registers[i] > this.registers[i]) {
+        this.registers[i] = other.registers[i];
+      }
+    }
+  }
+
+  public int getPrecision() {
+    return this.precision;
+  }
+}
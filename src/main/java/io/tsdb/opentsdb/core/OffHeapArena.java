@@ -0,0 +1,136 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Budgeted source of direct {@link ByteBuffer} slabs. Slab sizes are
+ * rounded up to a power of two and freed slabs are pooled by size, so a
+ * closing window hands its memory straight to the next one instead of
+ * waiting for the garbage collector to release direct memory. Both pooled
+ * and in-use slabs count against the budget. A pooled slab is only dropped
+ * to make room for another size if its memory can be freed right away;
+ * otherwise it stays pooled and counted.
+ */
+public class OffHeapArena {
+  private static final int SIZE_CLASSES = 31;
+  private final long maxBytes;
+  private final AtomicLong reserved = new AtomicLong(0);
+  private final ArrayDeque<ByteBuffer>[] pools;
+
+  @SuppressWarnings("unchecked")
+  public OffHeapArena(final long maxBytes) {
+    this.maxBytes = maxBytes;
+    this.pools = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[SIZE_CLASSES];
+    for (int i = 0; i < SIZE_CLASSES; i++) {
+      this.pools[i] = new ArrayDeque<ByteBuffer>();
+    }
+  }
+
+  /**
+   * @return a zeroed slab of at least the given size, or null if handing
+   * it out would exceed the budget
+   */
+  public ByteBuffer allocate(final int size) {
+    int sizeClass = sizeClass(size);
+    ByteBuffer slab;
+    ArrayDeque<ByteBuffer> pool = this.pools[sizeClass];
+    synchronized (pool) {
+      slab = pool.poll();
+    }
+    if (slab != null) {
+      slab.clear();
+      for (int i = 0; i < slab.capacity(); i += 8) {
+        slab.putLong(i, 0L);
+      }
+      return slab;
+    }
+    int capacity = 1 << sizeClass;
+    if (!reserve(capacity)) {
+      return null;
+    }
+    return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Returns a slab to the pool for reuse.
+   */
+  public void free(final ByteBuffer slab) {
+    ArrayDeque<ByteBuffer> pool = this.pools[sizeClass(slab.capacity())];
+    synchronized (pool) {
+      pool.push(slab);
+    }
+  }
+
+  /**
+   * @return bytes of direct memory held by this arena, pooled or in use
+   */
+  public long getReservedBytes() {
+    return this.reserved.get();
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  private boolean reserve(final int capacity) {
+    while (true) {
+      long current = this.reserved.get();
+      if (current + capacity <= this.maxBytes) {
+        if (this.reserved.compareAndSet(current, current + capacity)) {
+          return true;
+        }
+        continue;
+      }
+      // drop pooled slabs of other sizes before giving up
+      if (!releasePooled()) {
+        return false;
+      }
+    }
+  }
+
+  private boolean releasePooled() {
+    if (!DirectBuffers.canFree()) {
+      return false;
+    }
+    for (int i = SIZE_CLASSES - 1; i >= 0; i--) {
+      ByteBuffer slab;
+      synchronized (this.pools[i]) {
+        slab = this.pools[i].poll();
+      }
+      if (slab != null) {
+        if (!DirectBuffers.free(slab)) {
+          // still held, so it keeps counting against the budget
+          synchronized (this.pools[i]) {
+            this.pools[i].push(slab);
+          }
+          return false;
+        }
+        this.reserved.addAndGet(-slab.capacity());
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int sizeClass(final int size) {
+    return Math.max(6, 32 - Integer.numberOfLeadingZeros(Math.max(1, size) - 1));
+  }
+}
@@ -0,0 +1,247 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size, mergeable quantile sketch using logarithmically sized buckets
+ * (the DDSketch scheme). Every value is counted in the bucket whose bounds
+ * are within a configurable relative accuracy of it, so quantiles come back
+ * with that relative error no matter how many values were added. Two
+ * sketches with the same accuracy merge exactly by adding bucket counts.
+ * <p/>
+ * Bucket ranges grow on demand up to {@code maxBins}; past that the lowest
+ * magnitude buckets are collapsed together, which only costs accuracy at
+ * the very bottom of the distribution. This class is not thread safe, the
+ * owning {@link DataPoints} guards it.
+ */
+public class QuantileSketch {
+  public static final double DEFAULT_ACCURACY = 0.01;
+  public static final int DEFAULT_MAX_BINS = 2048;
+  // values closer to zero than this are counted as zero
+  private static final double MIN_INDEXABLE = 1e-9;
+
+  private final double accuracy;
+  private final double gamma;
+  private final double logGamma;
+  private final int maxBins;
+  private final Bins positive;
+  private final Bins negative;
+  private long zeroCount = 0;
+  private long count = 0;
+
+  public QuantileSketch() {
+    this(DEFAULT_ACCURACY, DEFAULT_MAX_BINS);
+  }
+
+  public QuantileSketch(final double accuracy, final int maxBins) {
+    if (accuracy <= 0 || accuracy >= 1) {
+      throw new IllegalArgumentException("accuracy must be between 0 and 1: " + accuracy);
+    }
+    this.accuracy = accuracy;
+    this.gamma = (1 + accuracy) / (1 - accuracy);
+    this.logGamma = Math.log(this.gamma);
+    this.maxBins = maxBins;
+    this.positive = new Bins(maxBins);
+    this.negative = new Bins(maxBins);
+  }
+
+  public QuantileSketch copy() {
+    QuantileSketch copy = new QuantileSketch(this.accuracy, this.maxBins);
+    copy.merge(this);
+    return copy;
+  }
+
+  public double getAccuracy() {
+    return accuracy;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public void add(final double value) {
+    if (value > MIN_INDEXABLE) {
+      this.positive.add(index(value), 1);
+    } else if (value < -MIN_INDEXABLE) {
+      this.negative.add(index(-value), 1);
+    } else if (Double.isNaN(value)) {
+      return;
+    } else {
+      this.zeroCount++;
+    }
+    this.count++;
+  }
+
+  /**
+   * Adds all of the other sketch's values to this one.
+   */
+  public void merge(final QuantileSketch other) {
+    if (other.gamma != this.gamma) {
+      throw new IllegalArgumentException("Cannot merge sketches with accuracy "
+              + this.accuracy + " and " + other.accuracy);
+    }
+    this.positive.merge(other.positive);
+    this.negative.merge(other.negative);
+    this.zeroCount += other.zeroCount;
+    this.count += other.count;
+  }
+
+  /**
+   * @param quantile a value between 0 and 1
+   * @return the estimated value at the quantile, or NaN if the sketch is empty
+   */
+  public double getQuantile(final double quantile) {
+    if (this.count == 0) {
+      return Double.NaN;
+    }
+    long rank = (long) (quantile * (this.count - 1));
+    // negative values from the largest magnitude down, then zero, then the
+    // positive values from the smallest magnitude up
+    long seen = 0;
+    for (int i = this.negative.counts.length - 1; i >= 0; i--) {
+      seen += this.negative.counts[i];
+      if (seen > rank) {
+        return -value(i + this.negative.offset);
+      }
+    }
+    seen += this.zeroCount;
+    if (seen > rank) {
+      return 0;
+    }
+    for (int i = 0; i < this.positive.counts.length; i++) {
+      seen += this.positive.counts[i];
+      if (seen > rank) {
+        return value(i + this.positive.offset);
+      }
+    }
+    return value(this.positive.offset + this.positive.counts.length - 1);
+  }
+
+  /**
+   * @return the number of bytes {@link #serialize} will write
+   */
+  public int serializedSize() {
+    return 8 + 4 + 8 + 8 + this.positive.serializedSize() + this.negative.serializedSize();
+  }
+
+  public void serialize(final ByteBuffer buffer) {
+    buffer.putDouble(this.accuracy);
+    buffer.putInt(this.maxBins);
+    buffer.putLong(this.zeroCount);
+    buffer.putLong(this.count);
+    this.positive.serialize(buffer);
+    this.negative.serialize(buffer);
+  }
+
+  public static QuantileSketch deserialize(final ByteBuffer buffer) {
+    QuantileSketch sketch = new QuantileSketch(buffer.getDouble(), buffer.getInt());
+    sketch.zeroCount = buffer.getLong();
+    sketch.count = buffer.getLong();
+    sketch.positive.deserialize(buffer);
+    sketch.negative.deserialize(buffer);
+    return sketch;
+  }
+
+  private int index(final double value) {
+    return (int) Math.ceil(Math.log(value) / this.logGamma);
+  }
+
+  private double value(final int index) {
+    return 2 * Math.pow(this.gamma, index) / (this.gamma + 1);
+  }
+
+  /**
+   * Dense run of bucket counts starting at bucket index {@code offset}.
+   */
+  private static class Bins {
+    private final int maxBins;
+    private long[] counts = new long[0];
+    private int offset = 0;
+
+    Bins(final int maxBins) {
+      this.maxBins = maxBins;
+    }
+
+    void add(final int index, final long n) {
+      if (this.counts.length == 0) {
+        this.counts = new long[Math.min(32, this.maxBins)];
+        this.offset = index - this.counts.length / 2;
+      }
+      int i = index - this.offset;
+      if (i < 0 || i >= this.counts.length) {
+        extend(index);
+        i = Math.max(0, index - this.offset);
+      }
+      this.counts[i] += n;
+    }
+
+    void merge(final Bins other) {
+      for (int i = 0; i < other.counts.length; i++) {
+        if (other.counts[i] != 0) {
+          add(i + other.offset, other.counts[i]);
+        }
+      }
+    }
+
+    int serializedSize() {
+      return 8 + this.counts.length * 8;
+    }
+
+    void serialize(final ByteBuffer buffer) {
+      buffer.putInt(this.offset);
+      buffer.putInt(this.counts.length);
+      for (long count : this.counts) {
+        buffer.putLong(count);
+      }
+    }
+
+    void deserialize(final ByteBuffer buffer) {
+      this.offset = buffer.getInt();
+      this.counts = new long[buffer.getInt()];
+      for (int i = 0; i < this.counts.length; i++) {
+        this.counts[i] = buffer.getLong();
+      }
+    }
+
+    /**
+     * Grows the run to cover the index, collapsing the lowest buckets into
+     * one once the run would exceed the bucket limit.
+     */
+    private void extend(final int index) {
+      int low = Math.min(this.offset, index);
+      int high = Math.max(this.offset + this.counts.length - 1, index);
+      int length = high - low + 1;
+      if (length <= this.counts.length) {
+        return;
+      }
+      // grow geometrically so a drifting range does not copy on every add
+      int capacity = Math.min(this.maxBins, Math.max(length, this.counts.length * 2));
+      if (length > capacity || index < this.offset) {
+        // anchor at the top, anything below the new run lands in bucket 0
+        low = high - capacity + 1;
+      }
+      long[] resized = new long[capacity];
+      for (int i = 0; i < this.counts.length; i++) {
+        int target = i + this.offset - low;
+        resized[Math.max(0, Math.min(capacity - 1, target))] += this.counts[i];
+      }
+      this.counts = resized;
+      this.offset = low;
+    }
+  }
+}
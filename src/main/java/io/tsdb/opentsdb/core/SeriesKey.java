@@ -0,0 +1,212 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+
+/**
+ * 128-bit identity of a series, hashed from the metric and its tags in
+ * canonical (sorted by tag key) order so the same tag set always maps to
+ * the same key. The hash is MurmurHash3 x64_128 run directly over the
+ * characters of the strings, so computing a key builds no intermediate
+ * strings or byte arrays. The timestamp is deliberately not part of the
+ * key, windows are a separate dimension.
+ */
+public final class SeriesKey {
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  private static final ThreadLocal<Hasher> HASHERS = new ThreadLocal<Hasher>() {
+    @Override
+    protected Hasher initialValue() {
+      return new Hasher();
+    }
+  };
+
+  private final long hi;
+  private final long lo;
+
+  public SeriesKey(final long hi, final long lo) {
+    this.hi = hi;
+    this.lo = lo;
+  }
+
+  public static SeriesKey of(final String metric, final Map<String, String> tags) {
+    return HASHERS.get().hash(metric, tags);
+  }
+
+  public long getHi() {
+    return hi;
+  }
+
+  public long getLo() {
+    return lo;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof SeriesKey)) {
+      return false;
+    }
+    SeriesKey other = (SeriesKey) o;
+    return this.hi == other.hi && this.lo == other.lo;
+  }
+
+  @Override
+  public int hashCode() {
+    // the bits are already well mixed
+    return (int) this.lo;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%016x%016x", this.hi, this.lo);
+  }
+
+  /**
+   * Per-thread streaming hash state plus a scratch array for sorting tags.
+   */
+  private static class Hasher {
+    private Map.Entry<String, String>[] entries = newEntries(8);
+    private long h1;
+    private long h2;
+    private long k1;
+    private long k2;
+    private int pos;
+    private long length;
+
+    @SuppressWarnings("unchecked")
+    private static Map.Entry<String, String>[] newEntries(final int size) {
+      return (Map.Entry<String, String>[]) new Map.Entry<?, ?>[size];
+    }
+
+    SeriesKey hash(final String metric, final Map<String, String> tags) {
+      this.h1 = 0;
+      this.h2 = 0;
+      this.k1 = 0;
+      this.k2 = 0;
+      this.pos = 0;
+      this.length = 0;
+      update(metric);
+      int n = sortTags(tags);
+      for (int i = 0; i < n; i++) {
+        update(this.entries[i].getKey());
+        update(this.entries[i].getValue());
+        this.entries[i] = null;
+      }
+      return finish();
+    }
+
+    /**
+     * Insertion sorts the tag entries by key into the scratch array. Series
+     * carry only a handful of tags, so this beats allocating a TreeMap.
+     */
+    private int sortTags(final Map<String, String> tags) {
+      if (tags.size() > this.entries.length) {
+        this.entries = newEntries(tags.size());
+      }
+      int n = 0;
+      for (Map.Entry<String, String> entry : tags.entrySet()) {
+        int i = n++;
+        while (i > 0 && this.entries[i - 1].getKey().compareTo(entry.getKey()) > 0) {
+          this.entries[i] = this.entries[i - 1];
+          i--;
+        }
+        this.entries[i] = entry;
+      }
+      return n;
+    }
+
+    /**
+     * Hashes the string's characters followed by a NUL separator, which
+     * cannot appear in OpenTSDB metric or tag names.
+     */
+    private void update(final String s) {
+      for (int i = 0; i < s.length(); i++) {
+        update(s.charAt(i));
+      }
+      update((char) 0);
+    }
+
+    private void update(final char c) {
+      if (this.pos < 4) {
+        this.k1 |= (long) c << (16 * this.pos);
+      } else {
+        this.k2 |= (long) c << (16 * (this.pos - 4));
+      }
+      this.length += 2;
+      if (++this.pos == 8) {
+        mixBlock();
+      }
+    }
+
+    private void mixBlock() {
+      this.h1 ^= mixK1(this.k1);
+      this.h1 = Long.rotateLeft(this.h1, 27);
+      this.h1 += this.h2;
+      this.h1 = this.h1 * 5 + 0x52dce729;
+      this.h2 ^= mixK2(this.k2);
+      this.h2 = Long.rotateLeft(this.h2, 31);
+      this.h2 += this.h1;
+      this.h2 = this.h2 * 5 + 0x38495ab5;
+      this.k1 = 0;
+      this.k2 = 0;
+      this.pos = 0;
+    }
+
+    private SeriesKey finish() {
+      if (this.pos > 0) {
+        this.h1 ^= mixK1(this.k1);
+        this.h2 ^= mixK2(this.k2);
+      }
+      this.h1 ^= this.length;
+      this.h2 ^= this.length;
+      this.h1 += this.h2;
+      this.h2 += this.h1;
+      this.h1 = fmix64(this.h1);
+      this.h2 = fmix64(this.h2);
+      this.h1 += this.h2;
+      this.h2 += this.h1;
+      return new SeriesKey(this.h1, this.h2);
+    }
+
+    private static long mixK1(long k1) {
+      k1 *= C1;
+      k1 = Long.rotateLeft(k1, 31);
+      k1 *= C2;
+      return k1;
+    }
+
+    private static long mixK2(long k2) {
+      k2 *= C2;
+      k2 = Long.rotateLeft(k2, 33);
+      k2 *= C1;
+      return k2;
+    }
+
+    private static long fmix64(long k) {
+      k ^= k >>> 33;
+      k *= 0xff51afd7ed558ccdL;
+      k ^= k >>> 33;
+      k *= 0xc4ceb9fe1a85ec53L;
+      k ^= k >>> 33;
+      return k;
+    }
+  }
+}
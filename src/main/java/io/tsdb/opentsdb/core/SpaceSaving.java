@@ -0,0 +1,124 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving summary of the most frequent items in a stream. At most
+ * {@code capacity} counters are kept; an item that is not counted yet takes
+ * over the smallest counter and inherits its count as the error bound, so
+ * any item occurring more than total / capacity times is guaranteed to be
+ * in the summary and no count is ever underestimated.
+ * <p/>
+ * Eviction scans for the smallest counter, which is cheap for the small
+ * capacities a top-K needs. This class is not thread safe.
+ */
+public class SpaceSaving {
+  private final int capacity;
+  private final Map<String, long[]> counters;
+  private long total = 0;
+
+  public SpaceSaving(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    this.counters = new HashMap<String, long[]>(capacity * 2);
+  }
+
+  public void offer(final String item, final long increment) {
+    this.total += increment;
+    long[] counter = this.counters.get(item);
+    if (counter != null) {
+      counter[0] += increment;
+      return;
+    }
+    if (this.counters.size() < this.capacity) {
+      this.counters.put(item, new long[] { increment, 0 });
+      return;
+    }
+    String smallest = null;
+    long[] min = null;
+    for (Map.Entry<String, long[]> entry : this.counters.entrySet()) {
+      if (min == null || entry.getValue()[0] < min[0]) {
+        smallest = entry.getKey();
+        min = entry.getValue();
+      }
+    }
+    this.counters.remove(smallest);
+    min[1] = min[0];
+    min[0] += increment;
+    this.counters.put(item, min);
+  }
+
+  /**
+   * Adds the counters of another summary to this one. Items the other
+   * summary counted that this one cannot hold compete for counters exactly
+   * as if they had been offered here.
+   */
+  public void merge(final SpaceSaving other) {
+    for (Map.Entry<String, long[]> entry : other.counters.entrySet()) {
+      long[] counter = this.counters.get(entry.getKey());
+      if (counter != null) {
+        counter[0] += entry.getValue()[0];
+        counter[1] += entry.getValue()[1];
+        this.total += entry.getValue()[0];
+      } else {
+        offer(entry.getKey(), entry.getValue()[0]);
+      }
+    }
+  }
+
+  /** @return the k most frequent items, largest count first */
+  public List<Map.Entry<String, Long>> top(final int k) {
+    List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(this.counters.size());
+    for (Map.Entry<String, long[]> entry : this.counters.entrySet()) {
+      entries.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(), entry.getValue()[0]));
+    }
+    Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+      public int compare(final Map.Entry<String, Long> a, final Map.Entry<String, Long> b) {
+        return Long.compare(b.getValue(), a.getValue());
+      }
+    });
+    return entries.subList(0, Math.min(k, entries.size()));
+  }
+
+  /** @return how much the count of an item may be overestimated, or -1 if it is not counted */
+  public long getError(final String item) {
+    long[] counter = this.counters.get(item);
+    return counter == null ? -1 : counter[1];
+  }
+
+  public long getTotal() {
+    return this.total;
+  }
+
+  public int size() {
+    return this.counters.size();
+  }
+
+  public void clear() {
+    this.counters.clear();
+    this.total = 0;
+  }
+}
@@ -0,0 +1,164 @@
+package io.tsdb.opentsdb.core;
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared dictionary that maps metric names, tag keys and tag values to
+ * small integer ids so that series state can be kept as a compact int
+ * array instead of strings and tag maps. A series is encoded as
+ * {@code [metric, tagk1, tagv1, tagk2, tagv2, ...]}.
+ * <p/>
+ * Every id is reference counted by the encoded series that use it, and an
+ * id whose count drops to zero is evicted and recycled. Every series that
+ * opens a window is encoded, so taking and dropping a reference on a known
+ * string is lock free, and so is decoding. Only adding a new string and
+ * evicting an unused one take the dictionary's lock.
+ */
+public class TagDictionary {
+  private final ConcurrentHashMap<String, Entry> ids = new ConcurrentHashMap<String, Entry>();
+  private volatile Entry[] entries = new Entry[1024];
+  private int[] free = new int[64];
+  private int freeCount = 0;
+  private int nextId = 0;
+
+  /**
+   * Encodes the series, taking a reference on every id it uses.
+   */
+  public int[] encode(final String metric, final Map<String, String> tags) {
+    int[] series = new int[1 + tags.size() * 2];
+    series[0] = acquire(metric);
+    int i = 1;
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      series[i++] = acquire(tag.getKey());
+      series[i++] = acquire(tag.getValue());
+    }
+    return series;
+  }
+
+  /**
+   * Takes another reference on every id in an already encoded series, for
+   * when a second holder shares the same array.
+   */
+  public void retain(final int[] series) {
+    Entry[] entries = this.entries;
+    for (int id : series) {
+      entries[id].refs.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drops one reference on every id in the series, evicting any string that
+   * is no longer used by a live series.
+   */
+  public void release(final int[] series) {
+    Entry[] entries = this.entries;
+    for (int id : series) {
+      Entry entry = entries[id];
+      if (entry.refs.decrementAndGet() == 0) {
+        evict(entry);
+      }
+    }
+  }
+
+  public String getMetric(final int[] series) {
+    return this.entries[series[0]].value;
+  }
+
+  public HashMap<String, String> getTags(final int[] series) {
+    Entry[] entries = this.entries;
+    HashMap<String, String> tags = new HashMap<String, String>(series.length);
+    for (int i = 1; i < series.length; i += 2) {
+      tags.put(entries[series[i]].value, entries[series[i + 1]].value);
+    }
+    return tags;
+  }
+
+  /**
+   * @return the number of distinct strings currently held
+   */
+  public int size() {
+    return this.ids.size();
+  }
+
+  private int acquire(final String value) {
+    Entry entry = this.ids.get(value);
+    if (entry != null && entry.retain()) {
+      return entry.id;
+    }
+    return add(value);
+  }
+
+  /**
+   * Adds a string that is new, or whose entry is being evicted and may not
+   * be taken again.
+   */
+  private synchronized int add(final String value) {
+    Entry entry = this.ids.get(value);
+    if (entry != null) {
+      if (entry.retain()) {
+        return entry.id;
+      }
+      this.ids.remove(value, entry);
+    }
+    int id = this.freeCount > 0 ? this.free[--this.freeCount] : this.nextId++;
+    if (id == this.entries.length) {
+      this.entries = Arrays.copyOf(this.entries, this.entries.length * 2);
+    }
+    entry = new Entry(value, id);
+    this.entries[id] = entry;
+    this.ids.put(value, entry);
+    return id;
+  }
+
+  private synchronized void evict(final Entry entry) {
+    this.ids.remove(entry.value, entry);
+    this.entries[entry.id] = null;
+    if (this.freeCount == this.free.length) {
+      this.free = Arrays.copyOf(this.free, this.free.length * 2);
+    }
+    this.free[this.freeCount++] = entry.id;
+  }
+
+  private static class Entry {
+    private final String value;
+    private final int id;
+    // starts out held by the series that added it; once it drops to zero
+    // the entry is dead and is never taken again
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    Entry(final String value, final int id) {
+      this.value = value;
+      this.id = id;
+    }
+
+    boolean retain() {
+      int current = this.refs.get();
+      while (current > 0) {
+        if (this.refs.compareAndSet(current, current + 1)) {
+          return true;
+        }
+        current = this.refs.get();
+      }
+      return false;
+    }
+  }
+}
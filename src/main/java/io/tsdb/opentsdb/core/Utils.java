@@ -16,44 +16,41 @@ package io.tsdb.opentsdb.core;
  */
 
 import io.tsdb.opentsdb.realtime.RollupPublisher;
-import net.opentsdb.core.IncomingDataPoint;
+import net.opentsdb.core.Const;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.*;
-
 public class Utils {
   private static final Logger LOG = LoggerFactory.getLogger(RollupPublisher.class);
-  public static Date floorTimestamp(Date ts, int windowMinutes) {
-    Calendar calendar = Calendar.getInstance();
-    calendar.set(Calendar.SECOND, 0);
-    calendar.set(Calendar.MILLISECOND, 0);
-    int modulo = calendar.get(Calendar.MINUTE) % windowMinutes;
-    if(modulo > 0) {
-      calendar.add(Calendar.MINUTE, -modulo);
+
+  /**
+   * Normalizes an OpenTSDB timestamp, which may be given in either seconds
+   * or milliseconds, to seconds.
+   */
+  public static long toSeconds(final long timestamp) {
+    if ((timestamp & Const.SECOND_MASK) != 0) {
+      return timestamp / 1000;
     }
-    long finalTS = calendar.getTime().getTime() / 1000;
-    return new Date(finalTS);
-  }
-  public static IncomingDataPoint makeDatapoint(final String metric,
-                                                 final long timestamp, final long value, final Map<String, String> tags) {
-    HashMap<String, String> tagsHash = new HashMap<String, String>(tags);
-    return new IncomingDataPoint(metric, timestamp, Objects.toString(value, null), tagsHash);
+    return timestamp;
   }
 
-  public static IncomingDataPoint makeDatapoint(final String metric,
-                                                 final long timestamp, final double value, final Map<String, String> tags) {
-    HashMap<String, String> tagsHash = new HashMap<String, String>(tags);
-    return new IncomingDataPoint(metric, timestamp, Objects.toString(value, null), tagsHash);
+  /**
+   * Normalizes an OpenTSDB timestamp, which may be given in either seconds
+   * or milliseconds, to milliseconds.
+   */
+  public static long toMillis(final long timestamp) {
+    if ((timestamp & Const.SECOND_MASK) != 0) {
+      return timestamp;
+    }
+    return timestamp * 1000;
   }
 
-  public static String getTagString(HashMap<String, String> tags) {
-    String tagString = "";
-    for (Map.Entry<String, String> entry : tags.entrySet()) {
-      String key = entry.getKey();
-      String value = entry.getValue();
-      tagString += key + value;
-    }
-    return tagString;
+  /**
+   * Floors a second or millisecond timestamp to the start of its window.
+   * @return the start of the window in seconds
+   */
+  public static long floorTimestamp(final long timestamp, final long windowSeconds) {
+    long seconds = toSeconds(timestamp);
+    return seconds - Math.floorMod(seconds, windowSeconds);
   }
 }
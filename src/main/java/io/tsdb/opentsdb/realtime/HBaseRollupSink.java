@@ -0,0 +1,366 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.RowKey;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes rollups straight to the TSDB data table, grouping the points of a
+ * row into one multi-column put instead of sending each point through
+ * {@link TSDB#addPoint}. Row keys are resolved with the asynchronous UID
+ * lookups, so a name missing from the UID cache never blocks the timer
+ * thread that closes windows. Points are buffered until a flush that fires
+ * a random delay within the jitter after the first buffered point, so the
+ * windows closing at a boundary land in a handful of puts and TSDs sharing
+ * a boundary do not start writing at the same instant. The flushed rows go
+ * out in batches that are released evenly over another jitter interval,
+ * with only a bounded number of batches in flight at once.
+ */
+class HBaseRollupSink implements RollupSink {
+  private static final Logger LOG = LoggerFactory.getLogger(HBaseRollupSink.class);
+  private static final byte[] FAMILY = { 't' };
+  // a float value of 8 bytes
+  private static final short FLAGS = (short) (Const.FLAG_FLOAT | 0x7);
+
+  private final TSDB tsdb;
+  private final HBaseClient client;
+  private final byte[] table;
+  private final Timer timer;
+  private final UniqueId metrics;
+  private final UniqueId tagNames;
+  private final UniqueId tagValues;
+  private final int batchRows;
+  private final int maxInFlight;
+  private final long flushJitter;
+  private final ArrayDeque<Batch> queued = new ArrayDeque<Batch>();
+  private Bytes.ByteMap<Row> pending = new Bytes.ByteMap<Row>();
+  private Timeout scheduled;
+  private int inFlight = 0;
+
+  HBaseRollupSink(final TSDB tsdb, final Timer timer, final int batchRows, final int maxInFlight,
+                  final long flushJitter) {
+    this(tsdb, tsdb.getClient(), tsdb.dataTable(), timer, batchRows, maxInFlight, flushJitter);
+  }
+
+  HBaseRollupSink(final TSDB tsdb, final HBaseClient client, final byte[] table, final Timer timer,
+                  final int batchRows, final int maxInFlight, final long flushJitter) {
+    if (batchRows <= 0 || maxInFlight <= 0) {
+      throw new IllegalArgumentException("Rollup batches need at least one row and one batch in flight");
+    }
+    this.tsdb = tsdb;
+    this.client = client;
+    this.table = table;
+    this.timer = timer;
+    this.batchRows = batchRows;
+    this.maxInFlight = maxInFlight;
+    this.flushJitter = flushJitter;
+    if (tsdb != null) {
+      // only used to assign the names the TSDB has no UID for yet
+      this.metrics = new UniqueId(client, tsdb.uidTable(), "metrics", TSDB.metrics_width());
+      this.tagNames = new UniqueId(client, tsdb.uidTable(), "tagk", TSDB.tagk_width());
+      this.tagValues = new UniqueId(client, tsdb.uidTable(), "tagv", TSDB.tagv_width());
+    } else {
+      this.metrics = null;
+      this.tagNames = null;
+      this.tagValues = null;
+    }
+  }
+
+  public Deferred<Object> emit(final String metric, final long timestamp, final double value,
+                               final Map<String, String> tags) {
+    final Deferred<Object> written = new Deferred<Object>();
+    Deferred<byte[]> key;
+    try {
+      key = rowKey(metric, timestamp - (timestamp % Const.MAX_TIMESPAN), tags);
+    } catch (RuntimeException e) {
+      LOG.error("Failed to store rollup " + metric + " " + timestamp + ": " + e);
+      return Deferred.fromError(e);
+    }
+    key.addCallbacks(new Callback<Object, byte[]>() {
+      public Object call(final byte[] key) {
+        buffer(key, timestamp, value, written);
+        return null;
+      }
+    }, new Callback<Object, Exception>() {
+      public Object call(final Exception e) {
+        Throwable cause = e instanceof DeferredGroupException ? e.getCause() : e;
+        LOG.error("Failed to store rollup " + metric + " " + timestamp + ": " + cause);
+        written.callback(cause);
+        return null;
+      }
+    });
+    return written;
+  }
+
+  private synchronized void buffer(final byte[] key, final long timestamp, final double value,
+                                   final Deferred<Object> written) {
+    Row row = this.pending.get(key);
+    if (row == null) {
+      row = new Row(key);
+      this.pending.put(key, row);
+    }
+    row.add(Internal.buildQualifier(timestamp, FLAGS), Bytes.fromLong(Double.doubleToRawLongBits(value)), written);
+    if (this.scheduled == null) {
+      long delay = this.flushJitter > 0 ? ThreadLocalRandom.current().nextLong(this.flushJitter) : 0;
+      this.scheduled = this.timer.newTimeout(new TimerTask() {
+        public void run(final Timeout timeout) {
+          flush(flushJitter);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Sends everything buffered so far without waiting for the scheduled flush.
+   * @return completes once the flushed rows are written
+   */
+  public Deferred<Object> flush() {
+    return flush(0);
+  }
+
+  /**
+   * @param spread the interval to release the batches evenly over, in
+   * milliseconds, or 0 to release them all at once
+   */
+  private Deferred<Object> flush(final long spread) {
+    Bytes.ByteMap<Row> rows;
+    synchronized (this) {
+      rows = this.pending;
+      this.pending = new Bytes.ByteMap<Row>();
+      if (this.scheduled != null) {
+        this.scheduled.cancel();
+        this.scheduled = null;
+      }
+    }
+    List<Batch> batches = new ArrayList<Batch>();
+    Batch batch = new Batch();
+    for (Row row : rows.values()) {
+      batch.rows.add(row);
+      if (batch.rows.size() == this.batchRows) {
+        batches.add(batch);
+        batch = new Batch();
+      }
+    }
+    if (!batch.rows.isEmpty()) {
+      batches.add(batch);
+    }
+    List<Deferred<Object>> written = new ArrayList<Deferred<Object>>(batches.size());
+    for (int i = 0; i < batches.size(); i++) {
+      final Batch next = batches.get(i);
+      written.add(next.written);
+      long delay = spread * i / batches.size();
+      if (delay == 0) {
+        enqueue(next);
+      } else {
+        this.timer.newTimeout(new TimerTask() {
+          public void run(final Timeout timeout) {
+            enqueue(next);
+            send();
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+      }
+    }
+    send();
+    return Deferred.group(written).addCallback(new Callback<Object, ArrayList<Object>>() {
+      public Object call(final ArrayList<Object> results) {
+        return null;
+      }
+    });
+  }
+
+  synchronized int getInFlight() {
+    return this.inFlight;
+  }
+
+  synchronized int getQueued() {
+    return this.queued.size();
+  }
+
+  /**
+   * Builds the row key TSDB would use for the metric, tags and base hour,
+   * assigning UIDs the way {@link TSDB#addPoint} does for names that have
+   * none yet.
+   */
+  Deferred<byte[]> rowKey(final String metric, final long baseTime, final Map<String, String> tags) {
+    List<Deferred<byte[]>> uids = new ArrayList<Deferred<byte[]>>(1 + 2 * tags.size());
+    uids.add(resolve(UniqueId.UniqueIdType.METRIC, metric));
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      uids.add(resolve(UniqueId.UniqueIdType.TAGK, tag.getKey()));
+      uids.add(resolve(UniqueId.UniqueIdType.TAGV, tag.getValue()));
+    }
+    return Deferred.groupInOrder(uids).addCallback(new Callback<byte[], ArrayList<byte[]>>() {
+      public byte[] call(final ArrayList<byte[]> resolved) {
+        byte[] metricUid = resolved.get(0);
+        List<byte[]> pairs = new ArrayList<byte[]>(tags.size());
+        int length = Const.SALT_WIDTH() + metricUid.length + Const.TIMESTAMP_BYTES;
+        for (int i = 1; i + 1 < resolved.size(); i += 2) {
+          byte[] tagk = resolved.get(i);
+          byte[] tagv = resolved.get(i + 1);
+          byte[] pair = new byte[tagk.length + tagv.length];
+          System.arraycopy(tagk, 0, pair, 0, tagk.length);
+          System.arraycopy(tagv, 0, pair, tagk.length, tagv.length);
+          pairs.add(pair);
+          length += pair.length;
+        }
+        // tags are stored in tagk UID order
+        Collections.sort(pairs, Bytes.MEMCMP);
+        byte[] key = new byte[length];
+        int offset = Const.SALT_WIDTH();
+        System.arraycopy(metricUid, 0, key, offset, metricUid.length);
+        offset += metricUid.length;
+        Bytes.setInt(key, (int) baseTime, offset);
+        offset += Const.TIMESTAMP_BYTES;
+        for (byte[] pair : pairs) {
+          System.arraycopy(pair, 0, key, offset, pair.length);
+          offset += pair.length;
+        }
+        RowKey.prefixKeyWithSalt(key);
+        return key;
+      }
+    });
+  }
+
+  Deferred<Object> put(final PutRequest put) {
+    return this.client.put(put);
+  }
+
+  /**
+   * Looks the name up in the TSDB's UID cache, and only on a miss goes to
+   * the UID table, assigning a new UID if the name has none.
+   */
+  private Deferred<byte[]> resolve(final UniqueId.UniqueIdType type, final String name) {
+    return this.tsdb.getUIDAsync(type, name).addErrback(new Callback<Object, Exception>() {
+      public Object call(final Exception e) {
+        if (!(e instanceof NoSuchUniqueName)
+                || (type == UniqueId.UniqueIdType.METRIC && !tsdb.getConfig().auto_metric())) {
+          return e;
+        }
+        if (type == UniqueId.UniqueIdType.METRIC) {
+          return metrics.getOrCreateIdAsync(name);
+        }
+        return (type == UniqueId.UniqueIdType.TAGK ? tagNames : tagValues).getOrCreateIdAsync(name);
+      }
+    });
+  }
+
+  private Deferred<Object> enqueue(final Batch batch) {
+    synchronized (this) {
+      this.queued.add(batch);
+    }
+    return batch.written;
+  }
+
+  private void send() {
+    while (true) {
+      Batch batch;
+      synchronized (this) {
+        if (this.inFlight >= this.maxInFlight || this.queued.isEmpty()) {
+          return;
+        }
+        batch = this.queued.poll();
+        this.inFlight++;
+      }
+      write(batch);
+    }
+  }
+
+  private void write(final Batch batch) {
+    List<Deferred<Object>> puts = new ArrayList<Deferred<Object>>(batch.rows.size());
+    for (final Row row : batch.rows) {
+      puts.add(put(row.toPut(this.table)).addBoth(new Callback<Object, Object>() {
+        public Object call(final Object result) {
+          if (result instanceof Exception) {
+            LOG.error("Failed to store " + row.waiters.size() + " rollups in row "
+                    + Bytes.pretty(row.key) + ": " + result);
+          }
+          for (Deferred<Object> waiter : row.waiters) {
+            waiter.callback(result);
+          }
+          return null;
+        }
+      }));
+    }
+    // the row callbacks swallow errors, so the group always succeeds
+    Deferred.group(puts).addCallback(new Callback<Object, ArrayList<Object>>() {
+      public Object call(final ArrayList<Object> results) {
+        synchronized (HBaseRollupSink.this) {
+          inFlight--;
+        }
+        batch.written.callback(null);
+        send();
+        return null;
+      }
+    });
+  }
+
+  private static final class Batch {
+    private final List<Row> rows = new ArrayList<Row>();
+    private final Deferred<Object> written = new Deferred<Object>();
+  }
+
+  private static final class Row {
+    private final byte[] key;
+    // a point fired again for the same timestamp replaces the earlier value
+    private final Bytes.ByteMap<byte[]> cells = new Bytes.ByteMap<byte[]>();
+    private final List<Deferred<Object>> waiters = new ArrayList<Deferred<Object>>(1);
+
+    private Row(final byte[] key) {
+      this.key = key;
+    }
+
+    private void add(final byte[] qualifier, final byte[] value, final Deferred<Object> waiter) {
+      this.cells.put(qualifier, value);
+      this.waiters.add(waiter);
+    }
+
+    private PutRequest toPut(final byte[] table) {
+      byte[][] qualifiers = new byte[this.cells.size()][];
+      byte[][] values = new byte[this.cells.size()][];
+      int i = 0;
+      for (Map.Entry<byte[], byte[]> cell : this.cells.entrySet()) {
+        qualifiers[i] = cell.getKey();
+        values[i] = cell.getValue();
+        i++;
+      }
+      return new PutRequest(table, this.key, FAMILY, qualifiers, values);
+    }
+  }
+}
@@ -0,0 +1,220 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated, bounded ring that hands datapoints from any number of
+ * Netty workers to one aggregation thread, so that aggregation never runs
+ * on the network path. Producers claim a slot by advancing the tail and
+ * publish it by stepping the slot's sequence; the consumer reads a slot
+ * once its sequence says it is published and hands it back by stepping
+ * the sequence a lap ahead. Slots are parallel arrays, so no event objects
+ * are allocated per datapoint.
+ * <p/>
+ * The tag map is handed over by reference, which is safe because the TSD
+ * does not touch it again once the datapoint has been published.
+ * <p/>
+ * Once stopped, the consumer closes the tail, so a producer that raced the
+ * stop either claimed its slot before the close and is drained, or finds
+ * the tail closed and drops its datapoint.
+ */
+class IngestRing implements Runnable {
+  private static final Logger LOG = LoggerFactory.getLogger(IngestRing.class);
+  // set on the tail once the consumer stops taking new datapoints
+  private static final long CLOSED = 1L << 62;
+
+  /**
+   * Receives every datapoint on the aggregation thread.
+   */
+  interface Handler {
+    void handle(String metric, long timestamp, double value, Map<String, String> tags);
+  }
+
+  /**
+   * How a producer waits for room in a full ring and the consumer waits for
+   * datapoints in an empty one. Each starts by spinning and then backs off.
+   */
+  enum WaitStrategy {
+    SPIN, YIELD, PARK;
+
+    void idle(final int spins) {
+      if (spins < 100 || this == SPIN) {
+        return;
+      }
+      if (spins < 200 || this == YIELD) {
+        Thread.yield();
+      } else {
+        LockSupport.parkNanos(50000);
+      }
+    }
+  }
+
+  private final int mask;
+  private final AtomicLongArray sequences;
+  private final String[] metrics;
+  private final long[] timestamps;
+  private final double[] values;
+  private final Map<String, String>[] tags;
+  private final AtomicLong tail = new AtomicLong(0);
+  private final AtomicLong head = new AtomicLong(0);
+  private final AtomicLong dropped = new AtomicLong(0);
+  private final AtomicLong waits = new AtomicLong(0);
+  private final WaitStrategy wait;
+  private final boolean dropWhenFull;
+  private final Handler handler;
+  private volatile boolean running = true;
+
+  @SuppressWarnings("unchecked")
+  IngestRing(final int size, final WaitStrategy wait, final boolean dropWhenFull, final Handler handler) {
+    if (size <= 0 || Integer.bitCount(size) != 1) {
+      throw new IllegalArgumentException("Ring size must be a power of two: " + size);
+    }
+    this.mask = size - 1;
+    this.sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      this.sequences.set(i, i);
+    }
+    this.metrics = new String[size];
+    this.timestamps = new long[size];
+    this.values = new double[size];
+    this.tags = (Map<String, String>[]) new Map<?, ?>[size];
+    this.wait = wait;
+    this.dropWhenFull = dropWhenFull;
+    this.handler = handler;
+  }
+
+  /**
+   * Queues the datapoint, waiting for room if the ring is full unless it
+   * was configured to drop instead.
+   * @return false if the datapoint was dropped
+   */
+  boolean publish(final String metric, final long timestamp, final double value,
+                  final Map<String, String> tags) {
+    int spins = 0;
+    while (true) {
+      long position = this.tail.get();
+      if (!this.running || (position & CLOSED) != 0) {
+        this.dropped.incrementAndGet();
+        return false;
+      }
+      int index = (int) position & this.mask;
+      long sequence = this.sequences.get(index);
+      if (sequence == position) {
+        if (this.tail.compareAndSet(position, position + 1)) {
+          this.metrics[index] = metric;
+          this.timestamps[index] = timestamp;
+          this.values[index] = value;
+          this.tags[index] = tags;
+          this.sequences.lazySet(index, position + 1);
+          return true;
+        }
+      } else if (sequence < position) {
+        if (this.dropWhenFull) {
+          this.dropped.incrementAndGet();
+          return false;
+        }
+        if (spins == 0) {
+          this.waits.incrementAndGet();
+        }
+        this.wait.idle(spins++);
+      }
+    }
+  }
+
+  /**
+   * Drains the ring until it is stopped and empty.
+   */
+  public void run() {
+    long position = this.head.get();
+    long end = -1;
+    int spins = 0;
+    while (true) {
+      int index = (int) position & this.mask;
+      if (this.sequences.get(index) != position + 1) {
+        // every slot claimed before the tail was closed is still drained
+        if (!this.running && end < 0) {
+          end = closeTail();
+        }
+        if (position == end) {
+          return;
+        }
+        this.wait.idle(spins++);
+        continue;
+      }
+      spins = 0;
+      String metric = this.metrics[index];
+      long timestamp = this.timestamps[index];
+      double value = this.values[index];
+      Map<String, String> tags = this.tags[index];
+      this.metrics[index] = null;
+      this.tags[index] = null;
+      this.sequences.lazySet(index, position + this.mask + 1);
+      this.head.lazySet(++position);
+      try {
+        this.handler.handle(metric, timestamp, value, tags);
+      } catch (RuntimeException e) {
+        LOG.error("Unable to aggregate datapoint for " + metric, e);
+      }
+    }
+  }
+
+  /**
+   * Stops accepting datapoints; the consumer exits once it has drained the
+   * ring.
+   */
+  void stop() {
+    this.running = false;
+  }
+
+  /**
+   * @return the position past the last slot that was claimed
+   */
+  private long closeTail() {
+    while (true) {
+      long position = this.tail.get();
+      if (this.tail.compareAndSet(position, position | CLOSED)) {
+        return position;
+      }
+    }
+  }
+
+  /**
+   * @return the number of datapoints waiting to be aggregated
+   */
+  long getDepth() {
+    return (this.tail.get() & ~CLOSED) - this.head.get();
+  }
+
+  long getDropped() {
+    return this.dropped.get();
+  }
+
+  /**
+   * @return how often a producer found the ring full and had to wait
+   */
+  long getWaits() {
+    return this.waits.get();
+  }
+}
@@ -0,0 +1,156 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.HyperLogLog;
+import io.tsdb.opentsdb.core.SeriesKey;
+import io.tsdb.opentsdb.core.SpaceSaving;
+import net.opentsdb.stats.StatsCollector;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks which metrics and tag values ingest is spending its points on, and
+ * how many distinct series each metric has, at a fixed memory cost. Point
+ * rates come from Space-Saving summaries fed by a sample of the points,
+ * striped by thread so workers rarely share a lock. Distinct series come
+ * from a HyperLogLog per metric, up to a fixed number of metrics.
+ * <p/>
+ * Both are reset every time they are collected, so rates and distinct
+ * counts cover the interval since the previous collection.
+ */
+class IngestStats {
+  // one point in this many feeds the heavy hitter summaries
+  static final int SAMPLE = 16;
+  // the summaries keep more counters than they report to rank the top reliably
+  private static final int COUNTERS_PER_HITTER = 8;
+
+  private final int topK;
+  private final int maxMetrics;
+  private final SpaceSaving[] metrics;
+  private final SpaceSaving[] tags;
+  private volatile ConcurrentHashMap<String, HyperLogLog> distinct;
+  private final AtomicLong untracked = new AtomicLong(0);
+  private long since;
+
+  IngestStats(final int topK, final int stripes, final int maxMetrics) {
+    if (topK <= 0) {
+      throw new IllegalArgumentException("Heavy hitters to report must be positive: " + topK);
+    }
+    this.topK = topK;
+    this.maxMetrics = maxMetrics;
+    this.metrics = new SpaceSaving[stripes];
+    this.tags = new SpaceSaving[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.metrics[i] = new SpaceSaving(topK * COUNTERS_PER_HITTER);
+      this.tags[i] = new SpaceSaving(topK * COUNTERS_PER_HITTER);
+    }
+    this.distinct = new ConcurrentHashMap<String, HyperLogLog>();
+    this.since = System.currentTimeMillis();
+  }
+
+  void record(final String metric, final Map<String, String> pointTags, final SeriesKey key) {
+    ConcurrentHashMap<String, HyperLogLog> distinct = this.distinct;
+    HyperLogLog series = distinct.get(metric);
+    if (series == null) {
+      if (distinct.size() >= this.maxMetrics) {
+        this.untracked.incrementAndGet();
+      } else {
+        HyperLogLog created = new HyperLogLog();
+        series = distinct.putIfAbsent(metric, created);
+        if (series == null) {
+          series = created;
+        }
+      }
+    }
+    if (series != null) {
+      series.offer(key.getHi());
+    }
+    if (ThreadLocalRandom.current().nextInt(SAMPLE) != 0) {
+      return;
+    }
+    int stripe = (int) (Thread.currentThread().getId() % this.metrics.length);
+    SpaceSaving metrics = this.metrics[stripe];
+    synchronized (metrics) {
+      metrics.offer(metric, SAMPLE);
+    }
+    SpaceSaving tags = this.tags[stripe];
+    synchronized (tags) {
+      for (Map.Entry<String, String> tag : pointTags.entrySet()) {
+        tags.offer(tag.getKey() + '=' + tag.getValue(), SAMPLE);
+      }
+    }
+  }
+
+  void collect(final StatsCollector collector) {
+    long now = System.currentTimeMillis();
+    double seconds = Math.max(now - this.since, 1) / 1000.0;
+    this.since = now;
+    for (Map.Entry<String, Long> hitter : drain(this.metrics).top(this.topK)) {
+      collector.record("rollup.hitters.metric.rate", hitter.getValue() / seconds, "metric=" + hitter.getKey());
+    }
+    for (Map.Entry<String, Long> hitter : drain(this.tags).top(this.topK)) {
+      int split = hitter.getKey().indexOf('=');
+      collector.addExtraTag("tagk", hitter.getKey().substring(0, split));
+      try {
+        collector.record("rollup.hitters.tag.rate", hitter.getValue() / seconds,
+                "tagv=" + hitter.getKey().substring(split + 1));
+      } finally {
+        collector.clearExtraTag("tagk");
+      }
+    }
+    ConcurrentHashMap<String, HyperLogLog> distinct = this.distinct;
+    this.distinct = new ConcurrentHashMap<String, HyperLogLog>();
+    for (Map.Entry<String, Long> metric : topDistinct(distinct)) {
+      collector.record("rollup.series.distinct", metric.getValue(), "metric=" + metric.getKey());
+    }
+    collector.record("rollup.hitters.untracked", this.untracked.getAndSet(0));
+  }
+
+  private SpaceSaving drain(final SpaceSaving[] stripes) {
+    SpaceSaving merged = new SpaceSaving(this.topK * COUNTERS_PER_HITTER);
+    for (SpaceSaving stripe : stripes) {
+      synchronized (stripe) {
+        merged.merge(stripe);
+        stripe.clear();
+      }
+    }
+    return merged;
+  }
+
+  private List<Map.Entry<String, Long>> topDistinct(final Map<String, HyperLogLog> distinct) {
+    List<Map.Entry<String, Long>> estimates = new ArrayList<Map.Entry<String, Long>>(distinct.size());
+    for (Map.Entry<String, HyperLogLog> entry : distinct.entrySet()) {
+      estimates.add(new AbstractMap.SimpleImmutableEntry<String, Long>(
+              entry.getKey(), entry.getValue().estimate()));
+    }
+    Collections.sort(estimates, new Comparator<Map.Entry<String, Long>>() {
+      public int compare(final Map.Entry<String, Long> a, final Map.Entry<String, Long> b) {
+        return Long.compare(b.getValue(), a.getValue());
+      }
+    });
+    return estimates.subList(0, Math.min(this.topK, estimates.size()));
+  }
+}
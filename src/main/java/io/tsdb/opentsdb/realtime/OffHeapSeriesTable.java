@@ -0,0 +1,328 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.OffHeapArena;
+import io.tsdb.opentsdb.core.SeriesKey;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Series accumulators for one rollup window kept outside the Java heap.
+ * Keys are spread over lock-striped segments, and each segment is an open
+ * addressing table in a direct slab with one 64 byte record per series:
+ * <pre>
+ *   0 key hi    8 key lo   16 count   24 sum   32 min   40 max   48 last
+ *  56 offset of the encoded series in the segment's id slabs, 60 in use
+ * </pre>
+ * Encoded series ids are bump allocated into separate slabs. All slabs go
+ * back to the arena at once when the window closes.
+ */
+class OffHeapSeriesTable {
+  static final int ADDED = 0;
+  static final int INSERTED = 1;
+  static final int MISSING = 2;
+  static final int CLOSED = 3;
+  static final int FULL = 4;
+
+  private static final int RECORD = 64;
+  private static final int INITIAL_SLOTS = 64;
+  private static final int ID_SLAB = 64 * 1024;
+
+  private final OffHeapArena arena;
+  private final Segment[] segments;
+  private boolean closed = false;
+
+  OffHeapSeriesTable(final OffHeapArena arena, final int concurrency) {
+    this.arena = arena;
+    int stripes = Integer.highestOneBit(Math.max(1, concurrency - 1)) << 1;
+    this.segments = new Segment[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.segments[i] = new Segment();
+    }
+  }
+
+  /**
+   * Adds a value to the series' record. If the series is new to the window
+   * a record is only created when its encoded ids are given, in which case
+   * the table copies them and takes over the caller's dictionary reference.
+   * @return ADDED, INSERTED, MISSING if the record does not exist and no
+   * ids were given, CLOSED or FULL if the arena's budget is exhausted
+   */
+  int add(final SeriesKey key, final int[] series, final double value) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      if (this.closed) {
+        return CLOSED;
+      }
+      int slot = segment.find(key);
+      if (slot >= 0) {
+        segment.add(slot, 1, value, value, value, value);
+        return ADDED;
+      }
+      if (series == null) {
+        return MISSING;
+      }
+      slot = segment.insert(key, series);
+      if (slot < 0) {
+        return FULL;
+      }
+      segment.add(slot, 1, value, value, value, value);
+      return INSERTED;
+    }
+  }
+
+  /**
+   * Folds a closed finer window's summary into the series' record, with the
+   * same record creation rules as {@link #add}.
+   */
+  int merge(final SeriesKey key, final int[] series, final DataPoints dps) {
+    Segment segment = segmentFor(key);
+    synchronized (segment) {
+      if (this.closed) {
+        return CLOSED;
+      }
+      int result = ADDED;
+      int slot = segment.find(key);
+      if (slot < 0) {
+        slot = segment.insert(key, series);
+        if (slot < 0) {
+          return FULL;
+        }
+        result = INSERTED;
+      }
+      segment.add(slot, dps.getCount(), dps.getSum(), dps.getMin(), dps.getMax(), dps.getLast());
+      return result;
+    }
+  }
+
+  /**
+   * Closes the table, hands every record to the visitor as a transient
+   * {@link DataPoints} carrying the record's dictionary reference, and
+   * returns all slabs to the arena.
+   */
+  void close(final long timestamp, final RollupWindow.Visitor visitor) {
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        this.closed = true;
+      }
+    }
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        segment.drain(timestamp, visitor);
+      }
+    }
+  }
+
+  /**
+   * Hands a snapshot of every record to the visitor without closing the
+   * table. The dictionary ids in the snapshots are not referenced on the
+   * visitor's behalf.
+   */
+  void forEach(final long timestamp, final RollupWindow.Visitor visitor) {
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        segment.visit(timestamp, visitor);
+      }
+    }
+  }
+
+  int size() {
+    int size = 0;
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  long getCount() {
+    long count = 0;
+    for (Segment segment : this.segments) {
+      synchronized (segment) {
+        count += segment.getCount();
+      }
+    }
+    return count;
+  }
+
+  private Segment segmentFor(final SeriesKey key) {
+    return this.segments[(int) (key.getHi() >>> 32) & (this.segments.length - 1)];
+  }
+
+  private class Segment {
+    private ByteBuffer table;
+    private int slots = 0;
+    private int size = 0;
+    private final ArrayList<ByteBuffer> ids = new ArrayList<ByteBuffer>();
+    private int idPosition = ID_SLAB;
+
+    int find(final SeriesKey key) {
+      if (this.table == null) {
+        return -1;
+      }
+      int mask = this.slots - 1;
+      for (int slot = (int) key.getLo() & mask; ; slot = (slot + 1) & mask) {
+        int base = slot * RECORD;
+        if (this.table.getInt(base + 60) == 0) {
+          return -1;
+        }
+        if (this.table.getLong(base) == key.getHi() && this.table.getLong(base + 8) == key.getLo()) {
+          return slot;
+        }
+      }
+    }
+
+    /**
+     * @return the slot of the new record, or -1 if the arena is exhausted
+     */
+    int insert(final SeriesKey key, final int[] series) {
+      if ((this.size + 1) * 4 > this.slots * 3 && !resize()) {
+        return -1;
+      }
+      int offset = storeIds(series);
+      if (offset < 0) {
+        return -1;
+      }
+      int mask = this.slots - 1;
+      int slot = (int) key.getLo() & mask;
+      while (this.table.getInt(slot * RECORD + 60) != 0) {
+        slot = (slot + 1) & mask;
+      }
+      int base = slot * RECORD;
+      this.table.putLong(base, key.getHi());
+      this.table.putLong(base + 8, key.getLo());
+      this.table.putDouble(base + 32, Double.POSITIVE_INFINITY);
+      this.table.putDouble(base + 40, Double.NEGATIVE_INFINITY);
+      this.table.putInt(base + 56, offset);
+      this.table.putInt(base + 60, 1);
+      this.size++;
+      return slot;
+    }
+
+    void add(final int slot, final long count, final double sum, final double min,
+             final double max, final double last) {
+      int base = slot * RECORD;
+      this.table.putLong(base + 16, this.table.getLong(base + 16) + count);
+      this.table.putDouble(base + 24, this.table.getDouble(base + 24) + sum);
+      this.table.putDouble(base + 32, Math.min(this.table.getDouble(base + 32), min));
+      this.table.putDouble(base + 40, Math.max(this.table.getDouble(base + 40), max));
+      this.table.putDouble(base + 48, last);
+    }
+
+    long getCount() {
+      long count = 0;
+      for (int slot = 0; slot < this.slots; slot++) {
+        count += this.table.getLong(slot * RECORD + 16);
+      }
+      return count;
+    }
+
+    void drain(final long timestamp, final RollupWindow.Visitor visitor) {
+      visit(timestamp, visitor);
+      if (this.table != null) {
+        arena.free(this.table);
+        this.table = null;
+      }
+      for (ByteBuffer slab : this.ids) {
+        arena.free(slab);
+      }
+      this.ids.clear();
+      this.slots = 0;
+      this.size = 0;
+    }
+
+    void visit(final long timestamp, final RollupWindow.Visitor visitor) {
+      for (int slot = 0; slot < this.slots; slot++) {
+        int base = slot * RECORD;
+        if (this.table.getInt(base + 60) == 0) {
+          continue;
+        }
+        DataPoints dps = new DataPoints(loadIds(this.table.getInt(base + 56)), timestamp,
+                this.table.getLong(base + 16), this.table.getDouble(base + 24),
+                this.table.getDouble(base + 32), this.table.getDouble(base + 40),
+                this.table.getDouble(base + 48));
+        visitor.visit(new SeriesKey(this.table.getLong(base), this.table.getLong(base + 8)), dps);
+      }
+    }
+
+    private boolean resize() {
+      int grown = this.slots == 0 ? INITIAL_SLOTS : this.slots * 2;
+      ByteBuffer resized = arena.allocate(grown * RECORD);
+      if (resized == null) {
+        return false;
+      }
+      int mask = grown - 1;
+      for (int slot = 0; slot < this.slots; slot++) {
+        int base = slot * RECORD;
+        if (this.table.getInt(base + 60) == 0) {
+          continue;
+        }
+        int target = (int) this.table.getLong(base + 8) & mask;
+        while (resized.getInt(target * RECORD + 60) != 0) {
+          target = (target + 1) & mask;
+        }
+        for (int i = 0; i < RECORD; i += 8) {
+          resized.putLong(target * RECORD + i, this.table.getLong(base + i));
+        }
+      }
+      if (this.table != null) {
+        arena.free(this.table);
+      }
+      this.table = resized;
+      this.slots = grown;
+      return true;
+    }
+
+    /**
+     * Copies the encoded series into the id slabs as a length prefixed run.
+     * @return the position of the run, or -1 if the arena is exhausted
+     */
+    private int storeIds(final int[] series) {
+      int bytes = (series.length + 1) * 4;
+      if (this.idPosition + bytes > ID_SLAB) {
+        ByteBuffer slab = arena.allocate(ID_SLAB);
+        if (slab == null) {
+          return -1;
+        }
+        this.ids.add(slab);
+        this.idPosition = 0;
+      }
+      ByteBuffer slab = this.ids.get(this.ids.size() - 1);
+      int offset = (this.ids.size() - 1) * ID_SLAB + this.idPosition;
+      slab.putInt(this.idPosition, series.length);
+      for (int i = 0; i < series.length; i++) {
+        slab.putInt(this.idPosition + 4 + i * 4, series[i]);
+      }
+      this.idPosition += bytes;
+      return offset;
+    }
+
+    private int[] loadIds(final int offset) {
+      ByteBuffer slab = this.ids.get(offset / ID_SLAB);
+      int position = offset % ID_SLAB;
+      int[] series = new int[slab.getInt(position)];
+      for (int i = 0; i < series.length; i++) {
+        series[i] = slab.getInt(position + 4 + i * 4);
+      }
+      return series;
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.SeriesKey;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the {@link RollupPolicy} of a series. Exact names are a hash
+ * lookup, prefixes are a walk down a character trie and regular
+ * expressions are tried in turn, but all of that only happens the first
+ * time a series is seen: the result is cached by series key, so the
+ * per-datapoint cost is a single hash hit no matter how many policies are
+ * configured. The cache is bounded by a clock: when it is full, the hand
+ * sweeps past entries that were hit since it last passed them and evicts
+ * the first one that was not, so the series in use stay cached.
+ */
+class PolicyMatcher {
+  private final Map<String, List<RollupPolicy>> exact = new HashMap<String, List<RollupPolicy>>();
+  private final Node prefixes = new Node();
+  private final List<RollupPolicy> regexPolicies = new ArrayList<RollupPolicy>();
+  private final List<Pattern> regexes = new ArrayList<Pattern>();
+  private final ConcurrentHashMap<SeriesKey, Cached> cache;
+  private final SeriesKey[] clock;
+  private int hand = 0;
+
+  /**
+   * The policy of a series and, for grouped policies, the group that its
+   * datapoints are accumulated in.
+   */
+  static class Resolution {
+    private final RollupPolicy policy;
+    private final SeriesKey key;
+    private final Map<String, String> tags;
+
+    Resolution(final RollupPolicy policy, final SeriesKey key, final Map<String, String> tags) {
+      this.policy = policy;
+      this.key = key;
+      this.tags = tags;
+    }
+
+    RollupPolicy getPolicy() {
+      return policy;
+    }
+
+    SeriesKey getKey() {
+      return key;
+    }
+
+    Map<String, String> getTags() {
+      return tags;
+    }
+  }
+
+  private static class Cached {
+    private final Resolution resolution;
+    private volatile boolean referenced = false;
+
+    Cached(final Resolution resolution) {
+      this.resolution = resolution;
+    }
+  }
+
+  private static class Node {
+    private final HashMap<Character, Node> children = new HashMap<Character, Node>();
+    private final List<RollupPolicy> policies = new ArrayList<RollupPolicy>();
+  }
+
+  PolicyMatcher(final List<RollupPolicy> policies, final int maxCached) {
+    this.cache = new ConcurrentHashMap<SeriesKey, Cached>();
+    this.clock = new SeriesKey[maxCached];
+    for (RollupPolicy policy : policies) {
+      String pattern = policy.getPattern();
+      Pattern regex = policy.getRegex();
+      if (regex != null) {
+        this.regexPolicies.add(policy);
+        this.regexes.add(regex);
+      } else if (pattern.endsWith("*")) {
+        Node node = this.prefixes;
+        for (int i = 0; i < pattern.length() - 1; i++) {
+          Node child = node.children.get(pattern.charAt(i));
+          if (child == null) {
+            child = new Node();
+            node.children.put(pattern.charAt(i), child);
+          }
+          node = child;
+        }
+        node.policies.add(policy);
+      } else {
+        List<RollupPolicy> named = this.exact.get(pattern);
+        if (named == null) {
+          named = new ArrayList<RollupPolicy>();
+          this.exact.put(pattern, named);
+        }
+        named.add(policy);
+      }
+    }
+  }
+
+  /**
+   * @param key the key of the series as published
+   */
+  Resolution resolve(final SeriesKey key, final String metric, final Map<String, String> tags) {
+    Cached cached = this.cache.get(key);
+    if (cached != null) {
+      // only written when it flips, so hits do not contend on it
+      if (!cached.referenced) {
+        cached.referenced = true;
+      }
+      return cached.resolution;
+    }
+    Resolution resolution;
+    RollupPolicy policy = match(metric, tags);
+    if (policy.isGrouped()) {
+      Map<String, String> grouped = policy.group(tags);
+      resolution = new Resolution(policy, SeriesKey.of(metric, grouped), grouped);
+    } else {
+      resolution = new Resolution(policy, key, tags);
+    }
+    cache(key, resolution);
+    if (resolution.getKey() != key) {
+      // a group resolves to itself, which is how it is looked up at close
+      cache(resolution.getKey(), resolution);
+    }
+    return resolution;
+  }
+
+  /**
+   * Adds a resolution to the cache, evicting one that was not used since
+   * the hand last passed it if the cache is full. Only misses get here.
+   */
+  private synchronized void cache(final SeriesKey key, final Resolution resolution) {
+    if (this.cache.containsKey(key)) {
+      return;
+    }
+    while (true) {
+      SeriesKey victim = this.clock[this.hand];
+      Cached cached = victim == null ? null : this.cache.get(victim);
+      if (cached != null && cached.referenced) {
+        cached.referenced = false;
+        this.hand = (this.hand + 1) % this.clock.length;
+        continue;
+      }
+      if (victim != null) {
+        this.cache.remove(victim);
+      }
+      this.clock[this.hand] = key;
+      this.hand = (this.hand + 1) % this.clock.length;
+      this.cache.put(key, new Cached(resolution));
+      return;
+    }
+  }
+
+  /**
+   * @return the first configured policy that matches the series
+   */
+  private RollupPolicy match(final String metric, final Map<String, String> tags) {
+    RollupPolicy best = RollupPolicy.DEFAULT;
+    List<RollupPolicy> named = this.exact.get(metric);
+    if (named != null) {
+      best = first(named, tags, best);
+    }
+    Node node = this.prefixes;
+    for (int i = 0; node != null; i++) {
+      best = first(node.policies, tags, best);
+      node = i < metric.length() ? node.children.get(metric.charAt(i)) : null;
+    }
+    for (int i = 0; i < this.regexes.size(); i++) {
+      RollupPolicy policy = this.regexPolicies.get(i);
+      if (policy.getIndex() < best.getIndex() && policy.matchesTags(tags)
+              && this.regexes.get(i).matcher(metric).matches()) {
+        best = policy;
+      }
+    }
+    return best;
+  }
+
+  private static RollupPolicy first(final List<RollupPolicy> policies, final Map<String, String> tags,
+                                    final RollupPolicy best) {
+    for (RollupPolicy policy : policies) {
+      if (policy.getIndex() < best.getIndex() && policy.matchesTags(tags)) {
+        return policy;
+      }
+    }
+    return best;
+  }
+
+  int getCachedCount() {
+    return this.cache.size();
+  }
+}
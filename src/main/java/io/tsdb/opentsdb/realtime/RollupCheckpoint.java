@@ -0,0 +1,816 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.DirectBuffers;
+import io.tsdb.opentsdb.core.GorillaStream;
+import io.tsdb.opentsdb.core.QuantileSketch;
+import io.tsdb.opentsdb.core.SeriesKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Crash-safe persistence of open rollup windows. Each open window is
+ * written through a memory-mapped file of its own, and the datapoints that
+ * arrive between checkpoints are appended to a memory-mapped log. Mapped
+ * pages survive a crash of the JVM, so restarting only needs to map the
+ * windows back in and replay the short log written since.
+ * <p/>
+ * Checkpoints are incremental: a window that has not changed since it was
+ * last written keeps its file, and a manifest that is atomically renamed
+ * into place names the files that make up the checkpoint. The log is split
+ * into stripes that ingest threads reserve space in independently. Only
+ * the writers of a window are held off while it is copied, and the log
+ * position it was copied at is stored with it, so a restore replays exactly
+ * the datapoints the copy does not already hold.
+ */
+class RollupCheckpoint {
+  private static final Logger LOG = LoggerFactory.getLogger(RollupCheckpoint.class);
+  private static final int MAGIC = 0x52505348;
+  private static final int LOG_MAGIC = 0x5250534c;
+  private static final int VERSION = 1;
+  private static final int SNAPSHOT_CHUNK = 8 * 1024 * 1024;
+  private static final int MIN_STRIPE_BYTES = 64 * 1024;
+  private static final int LOG_HEADER = 12;
+  private static final int POINT = 1;
+  private static final int SERIES = 2;
+  private static final int MEMBER_POINT = 3;
+  private static final String SNAPSHOT = "rollup.snapshot";
+  private static final String WINDOW_PREFIX = "rollup.window.";
+  private static final String LOG_PREFIX = "rollup.log.";
+
+  private final File directory;
+  private final int logBytes;
+  private final Stripe[] stripes;
+  private final int stripeBytes;
+  private volatile Log log;
+  private long sequence = 0;
+  // the file each window was last written to, by minutes and timestamp
+  private Map<String, String> saved = new HashMap<String, String>();
+
+  /**
+   * Receives the state read back from disk on startup.
+   */
+  interface Restorer {
+    void restoreWindow(int minutes, String metric, Map<String, String> tags, DataPoints dps);
+
+    /**
+     * @param member the member of a group the datapoint was logged for, or
+     * null if its series is not grouped
+     */
+    void replayPoint(String metric, Map<String, String> tags, SeriesKey member, long timestamp, double value);
+
+    /**
+     * @return the start of the logged window a datapoint belongs to
+     */
+    long windowOf(long timestamp);
+  }
+
+  /**
+   * Supplies the open windows to a snapshot.
+   */
+  interface Source {
+    void writeTo(Snapshot snapshot) throws IOException;
+  }
+
+  /**
+   * Copies the series of one window.
+   */
+  interface Contents {
+    void copyTo(List<Entry> entries);
+  }
+
+  /**
+   * Holds off the writers of one window while it is copied. A writer checks
+   * the gate while it holds its stripe, and waits for the release without
+   * it.
+   */
+  interface Gate {
+    void hold();
+
+    void release();
+  }
+
+  /**
+   * A copy of one series of a window.
+   */
+  static class Entry {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final DataPoints dps;
+
+    Entry(final String metric, final Map<String, String> tags, final DataPoints dps) {
+      this.metric = metric;
+      this.tags = tags;
+      this.dps = dps;
+    }
+  }
+
+  /**
+   * The region of the log one group of ingest threads appends to. Its lock
+   * is held across the change to a window and the log record for it.
+   */
+  static class Stripe {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final int index;
+    private int position = 0;
+
+    Stripe(final int index) {
+      this.index = index;
+    }
+
+    void lock() {
+      this.lock.lock();
+    }
+
+    void unlock() {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * The log position a window was copied at.
+   */
+  private static class Mark {
+    private final long sequence;
+    private final int[] positions;
+
+    Mark(final long sequence, final int[] positions) {
+      this.sequence = sequence;
+      this.positions = positions;
+    }
+
+    boolean covers(final long seq, final int stripe, final int position) {
+      return seq < this.sequence || (seq == this.sequence && stripe < this.positions.length
+              && position < this.positions[stripe]);
+    }
+  }
+
+  RollupCheckpoint(final File directory, final int logBytes) {
+    this.directory = directory;
+    this.logBytes = logBytes;
+    int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1);
+    count = Math.max(1, Math.min(count, Integer.highestOneBit(Math.max(1, logBytes / MIN_STRIPE_BYTES))));
+    this.stripes = new Stripe[count];
+    for (int i = 0; i < count; i++) {
+      this.stripes[i] = new Stripe(i);
+    }
+    this.stripeBytes = (logBytes - LOG_HEADER) / count;
+  }
+
+  /**
+   * Loads the last checkpoint and replays every log written since, then
+   * starts a new log.
+   * @return the watermark stored with the checkpoint, or 0 if there is none
+   */
+  synchronized long restore(final Restorer restorer) throws IOException {
+    if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+      throw new IOException("Unable to create checkpoint directory " + this.directory);
+    }
+    long watermark = 0;
+    long firstLog = 0;
+    Map<SeriesKey, String[]> definitions = new HashMap<SeriesKey, String[]>();
+    Map<Long, Mark> marks = new HashMap<Long, Mark>();
+    File snapshot = new File(this.directory, SNAPSHOT);
+    if (snapshot.exists()) {
+      try (RandomAccessFile file = new RandomAccessFile(snapshot, "r")) {
+        MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        int magic = buffer.getInt();
+        int version = buffer.getInt();
+        if (magic != MAGIC || version != VERSION) {
+          throw new IOException("Unrecognized rollup snapshot " + snapshot);
+        }
+        firstLog = buffer.getLong();
+        watermark = buffer.getLong();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+          byte[] name = new byte[buffer.getInt()];
+          buffer.get(name);
+          readWindow(new String(name, StandardCharsets.UTF_8), restorer, definitions, marks);
+        }
+        DirectBuffers.free(buffer);
+        LOG.info("Restored " + count + " open rollup windows from " + snapshot);
+      }
+    }
+    List<Long> logs = listLogs();
+    // series are defined once per window, possibly after a point that
+    // raced ahead of the definition, so collect every definition first
+    List<Long> sequences = new ArrayList<Long>();
+    List<MappedByteBuffer> replay = new ArrayList<MappedByteBuffer>();
+    for (long seq : logs) {
+      this.sequence = Math.max(this.sequence, seq);
+      if (seq < firstLog) {
+        continue;
+      }
+      try (RandomAccessFile file = new RandomAccessFile(logFile(seq), "r")) {
+        MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        sequences.add(seq);
+        replay.add(buffer);
+        int[][] regions = regions(seq, buffer);
+        for (int[] region : regions) {
+          for (int position = region[0]; position + 4 <= region[1]; ) {
+            int kind = buffer.getInt(position);
+            if (kind == SERIES) {
+              SeriesKey key = new SeriesKey(buffer.getLong(position + 4), buffer.getLong(position + 12));
+              buffer.position(position + 20);
+              definitions.put(key, readSeries(buffer));
+              position = buffer.position();
+            } else if (kind == POINT || kind == MEMBER_POINT) {
+              position += recordLength(kind);
+            } else {
+              break;
+            }
+          }
+        }
+      }
+    }
+    long replayed = 0;
+    for (int i = 0; i < replay.size(); i++) {
+      replayed += replayLog(sequences.get(i), replay.get(i), restorer, definitions, marks);
+      // the log is deleted by the next checkpoint, which its mapping would outlive
+      DirectBuffers.free(replay.get(i));
+    }
+    LOG.info("Replayed " + replayed + " datapoints from " + replay.size() + " rollup logs");
+    this.log = new Log(++this.sequence);
+    return watermark;
+  }
+
+  /**
+   * Replays the points of every stripe of one log that the restored windows
+   * do not already hold, oldest timestamp first across the stripes so the
+   * watermark does not run ahead of a stripe that is behind.
+   */
+  private long replayLog(final long seq, final ByteBuffer buffer, final Restorer restorer,
+                         final Map<SeriesKey, String[]> definitions, final Map<Long, Mark> marks)
+          throws IOException {
+    int[][] regions = regions(seq, buffer);
+    int[] cursors = new int[regions.length];
+    for (int i = 0; i < regions.length; i++) {
+      cursors[i] = nextPoint(buffer, regions[i][0], regions[i][1]);
+    }
+    long replayed = 0;
+    while (true) {
+      int stripe = -1;
+      for (int i = 0; i < cursors.length; i++) {
+        if (cursors[i] >= 0 && (stripe < 0
+                || buffer.getLong(cursors[i] + 20) < buffer.getLong(cursors[stripe] + 20))) {
+          stripe = i;
+        }
+      }
+      if (stripe < 0) {
+        return replayed;
+      }
+      int position = cursors[stripe];
+      int kind = buffer.getInt(position);
+      cursors[stripe] = nextPoint(buffer, position + recordLength(kind), regions[stripe][1]);
+      long timestamp = buffer.getLong(position + 20);
+      Mark mark = marks.get(restorer.windowOf(timestamp));
+      if (mark != null && mark.covers(seq, stripe, position - regions[stripe][0])) {
+        continue;
+      }
+      String[] series = definitions.get(new SeriesKey(buffer.getLong(position + 4),
+              buffer.getLong(position + 12)));
+      if (series != null) {
+        SeriesKey member = kind == MEMBER_POINT
+                ? new SeriesKey(buffer.getLong(position + 36), buffer.getLong(position + 44)) : null;
+        restorer.replayPoint(series[0], toTags(series), member, timestamp, buffer.getDouble(position + 28));
+        replayed++;
+      }
+    }
+  }
+
+  /**
+   * @return the position of the next point record at or after the given
+   * one, or -1 if the stripe ends first
+   */
+  private static int nextPoint(final ByteBuffer buffer, final int from, final int end) {
+    for (int position = from; position + 4 <= end; ) {
+      int kind = buffer.getInt(position);
+      if (kind == POINT || kind == MEMBER_POINT) {
+        return position + recordLength(kind) <= end ? position : -1;
+      } else if (kind == SERIES) {
+        position += 24 + buffer.getInt(position + 20);
+      } else {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  private static int recordLength(final int kind) {
+    return kind == MEMBER_POINT ? 52 : 36;
+  }
+
+  /**
+   * @return the start and end of each stripe of a log
+   */
+  private int[][] regions(final long seq, final ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < LOG_HEADER || buffer.getInt(0) != LOG_MAGIC) {
+      throw new IOException("Unrecognized rollup log " + logFile(seq));
+    }
+    int count = buffer.getInt(4);
+    int bytes = buffer.getInt(8);
+    int[][] regions = new int[count][];
+    for (int i = 0; i < count; i++) {
+      int start = LOG_HEADER + i * bytes;
+      regions[i] = new int[] {start, Math.min(start + bytes, buffer.capacity())};
+    }
+    return regions;
+  }
+
+  private void readWindow(final String name, final Restorer restorer, final Map<SeriesKey, String[]> definitions,
+                          final Map<Long, Mark> marks) throws IOException {
+    File path = new File(this.directory, name);
+    try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+      MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+      int magic = buffer.getInt();
+      int version = buffer.getInt();
+      if (magic != MAGIC || version != VERSION) {
+        throw new IOException("Unrecognized rollup window " + path);
+      }
+      buffer.getInt();
+      long timestamp = buffer.getLong();
+      long seq = buffer.getLong();
+      int[] positions = new int[buffer.getInt()];
+      for (int i = 0; i < positions.length; i++) {
+        positions[i] = buffer.getInt();
+      }
+      if (seq >= 0) {
+        marks.put(timestamp, new Mark(seq, positions));
+      }
+      readEntries(buffer, buffer.getInt(), restorer, definitions);
+      DirectBuffers.free(buffer);
+    }
+    this.saved.put(name.substring(WINDOW_PREFIX.length(), name.lastIndexOf('.')), name);
+  }
+
+  private static void readEntries(final ByteBuffer buffer, final int entries,
+                                  final Restorer restorer, final Map<SeriesKey, String[]> definitions) {
+    for (int i = 0; i < entries; i++) {
+      int minutes = buffer.getInt();
+      long timestamp = buffer.getLong();
+      String[] series = readSeries(buffer);
+      Map<String, String> tags = toTags(series);
+      DataPoints dps = new DataPoints(null, timestamp, buffer.getLong(), buffer.getDouble(),
+              buffer.getDouble(), buffer.getDouble(), buffer.getDouble(),
+              buffer.get() == 1 ? QuantileSketch.deserialize(buffer) : null);
+      if (buffer.get() == 1) {
+        dps.restoreCounter(buffer.getLong(), buffer.getDouble(), buffer.getLong(), buffer.getDouble(),
+                buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+      }
+      if (buffer.get() == 1) {
+        dps.setRaw(GorillaStream.deserialize(buffer));
+      }
+      int members = buffer.getInt();
+      for (int m = 0; m < members; m++) {
+        dps.restoreMember(new SeriesKey(buffer.getLong(), buffer.getLong()), buffer.getDouble(),
+                buffer.getDouble());
+      }
+      definitions.put(SeriesKey.of(series[0], tags), series);
+      restorer.restoreWindow(minutes, series[0], tags, dps);
+    }
+  }
+
+  /**
+   * Locks the calling thread's stripe of the log. The caller holds it
+   * across the change it makes to a window and the records it logs for it,
+   * and unlocks it when done.
+   */
+  Stripe enter() {
+    Stripe stripe = this.stripes[(int) Thread.currentThread().getId() & (this.stripes.length - 1)];
+    stripe.lock();
+    return stripe;
+  }
+
+  /**
+   * Logs the identity of a series that just opened a window.
+   * @return false if the stripe of the current log is full
+   */
+  boolean logSeries(final Stripe stripe, final SeriesKey key, final String metric,
+                    final Map<String, String> tags) {
+    byte[] series = encodeSeries(metric, tags);
+    Log current = this.log;
+    if (current == null) {
+      return true;
+    }
+    int position = current.reserve(stripe, 20 + 4 + series.length);
+    if (position < 0) {
+      return false;
+    }
+    current.buffer.putLong(position + 4, key.getHi());
+    current.buffer.putLong(position + 12, key.getLo());
+    current.buffer.putInt(position + 20, series.length);
+    for (int i = 0; i < series.length; i++) {
+      current.buffer.put(position + 24 + i, series[i]);
+    }
+    // the kind goes in last so a torn record reads as the end of the stripe
+    current.buffer.putInt(position, SERIES);
+    return true;
+  }
+
+  /**
+   * Logs a datapoint that was added to an open window.
+   * @param member the member of a group the datapoint belongs to, or null
+   * if its series is not grouped
+   * @return false if the stripe of the current log is full
+   */
+  boolean logPoint(final Stripe stripe, final SeriesKey key, final SeriesKey member, final long timestamp,
+                   final double value) {
+    int kind = member == null ? POINT : MEMBER_POINT;
+    Log current = this.log;
+    if (current == null) {
+      return true;
+    }
+    int position = current.reserve(stripe, recordLength(kind));
+    if (position < 0) {
+      return false;
+    }
+    current.buffer.putLong(position + 4, key.getHi());
+    current.buffer.putLong(position + 12, key.getLo());
+    current.buffer.putLong(position + 20, timestamp);
+    current.buffer.putDouble(position + 28, value);
+    if (member != null) {
+      current.buffer.putLong(position + 36, member.getHi());
+      current.buffer.putLong(position + 44, member.getLo());
+    }
+    current.buffer.putInt(position, kind);
+    return true;
+  }
+
+  /**
+   * Starts a new log, writes every window that changed since the last
+   * checkpoint and then removes the files and logs the new checkpoint no
+   * longer needs.
+   */
+  synchronized void checkpoint(final long watermark, final Source source) throws IOException {
+    long start = System.currentTimeMillis();
+    Log previous = this.log;
+    if (previous == null) {
+      // closed
+      return;
+    }
+    Log next = new Log(this.sequence + 1);
+    lockAll();
+    try {
+      this.log = next;
+      this.sequence++;
+      for (Stripe stripe : this.stripes) {
+        stripe.position = 0;
+      }
+    } finally {
+      unlockAll();
+    }
+    Snapshot snapshot = new Snapshot(this.sequence);
+    source.writeTo(snapshot);
+    File temp = new File(this.directory, SNAPSHOT + ".tmp");
+    try (Writer writer = new Writer(temp)) {
+      writer.ensure(28);
+      writer.buffer.putInt(MAGIC);
+      writer.buffer.putInt(VERSION);
+      writer.buffer.putLong(this.sequence);
+      writer.buffer.putLong(watermark);
+      writer.buffer.putInt(snapshot.files.size());
+      for (String name : snapshot.files.values()) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        writer.ensure(4 + bytes.length);
+        writer.buffer.putInt(bytes.length);
+        writer.buffer.put(bytes);
+      }
+      writer.finish();
+    }
+    Files.move(temp.toPath(), new File(this.directory, SNAPSHOT).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    // no writer can still be using the previous log since the rotation
+    previous.close();
+    this.saved = snapshot.files;
+    String[] names = this.directory.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(WINDOW_PREFIX) && !snapshot.files.containsValue(name)
+                && !new File(this.directory, name).delete()) {
+          LOG.warn("Unable to delete rollup window " + name);
+        }
+      }
+    }
+    for (long seq : listLogs()) {
+      if (seq < this.sequence && !logFile(seq).delete()) {
+        LOG.warn("Unable to delete rollup log " + logFile(seq));
+      }
+    }
+    LOG.debug("Checkpointed " + snapshot.written + " of " + snapshot.files.size() + " rollup windows in "
+            + (System.currentTimeMillis() - start) + "ms");
+  }
+
+  /**
+   * Stops logging and unmaps the log. Datapoints stored after this are no
+   * longer logged.
+   */
+  synchronized void close() throws IOException {
+    Log current;
+    lockAll();
+    try {
+      current = this.log;
+      this.log = null;
+    } finally {
+      unlockAll();
+    }
+    if (current != null) {
+      current.close();
+    }
+  }
+
+  private void lockAll() {
+    for (Stripe stripe : this.stripes) {
+      stripe.lock();
+    }
+  }
+
+  private void unlockAll() {
+    for (int i = this.stripes.length - 1; i >= 0; i--) {
+      this.stripes[i].unlock();
+    }
+  }
+
+  private List<Long> listLogs() {
+    List<Long> logs = new ArrayList<Long>();
+    String[] names = this.directory.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(LOG_PREFIX)) {
+          logs.add(Long.parseLong(name.substring(LOG_PREFIX.length())));
+        }
+      }
+    }
+    Collections.sort(logs);
+    return logs;
+  }
+
+  private File logFile(final long seq) {
+    return new File(this.directory, LOG_PREFIX + seq);
+  }
+
+  /**
+   * Series are stored as their metric and tag strings separated by NULs,
+   * since dictionary ids do not survive a restart.
+   */
+  private static byte[] encodeSeries(final String metric, final Map<String, String> tags) {
+    StringBuilder builder = new StringBuilder(metric);
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      builder.append('\0').append(tag.getKey()).append('\0').append(tag.getValue());
+    }
+    return builder.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String[] readSeries(final ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8).split("\0", -1);
+  }
+
+  private static Map<String, String> toTags(final String[] series) {
+    Map<String, String> tags = new LinkedHashMap<String, String>();
+    for (int i = 1; i + 1 < series.length; i += 2) {
+      tags.put(series[i], series[i + 1]);
+    }
+    return tags;
+  }
+
+  /**
+   * A fixed-size, memory-mapped log that is split into one region per
+   * stripe, so writers in different stripes never share a position.
+   */
+  private class Log {
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+
+    Log(final long seq) throws IOException {
+      this.file = new RandomAccessFile(logFile(seq), "rw");
+      this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, logBytes);
+      this.buffer.putInt(4, stripes.length);
+      this.buffer.putInt(8, stripeBytes);
+      this.buffer.putInt(0, LOG_MAGIC);
+    }
+
+    /**
+     * Unmaps and closes the log. No writer may still be using it.
+     */
+    void close() throws IOException {
+      DirectBuffers.free(this.buffer);
+      this.file.close();
+    }
+
+    /**
+     * Must be called holding the stripe.
+     * @return the start of the reserved region, or -1 if the stripe is full
+     */
+    int reserve(final Stripe stripe, final int length) {
+      if (stripe.position + length > stripeBytes) {
+        return -1;
+      }
+      int start = LOG_HEADER + stripe.index * stripeBytes + stripe.position;
+      stripe.position += length;
+      return start;
+    }
+  }
+
+  /**
+   * Collects the windows of one checkpoint, writing only those that changed.
+   */
+  class Snapshot {
+    private final long sequence;
+    private final Map<String, String> files = new HashMap<String, String>();
+    private int written = 0;
+
+    Snapshot(final long sequence) {
+      this.sequence = sequence;
+    }
+
+    /**
+     * Carries a window that has not changed since the last checkpoint over
+     * in the file it was written to then.
+     * @return false if the window has never been written
+     */
+    boolean keep(final int minutes, final long timestamp) {
+      String id = minutes + "." + timestamp;
+      String name = saved.get(id);
+      if (name == null) {
+        return false;
+      }
+      this.files.put(id, name);
+      return true;
+    }
+
+    /**
+     * Copies a window and writes it to a file of its own. A window that
+     * datapoints are logged for is passed with its gate, and is stored with
+     * the log position it was copied at.
+     * @param gate the window's gate, or null if nothing is logged for it
+     */
+    void write(final int minutes, final long timestamp, final Gate gate, final Contents contents)
+            throws IOException {
+      List<Entry> entries = new ArrayList<Entry>();
+      int[] positions = new int[0];
+      if (gate != null) {
+        positions = new int[stripes.length];
+        gate.hold();
+        try {
+          // once each stripe was taken after the hold, no writer is still
+          // changing the window, and none will until the release
+          for (int i = 0; i < positions.length; i++) {
+            stripes[i].lock();
+            positions[i] = stripes[i].position;
+            stripes[i].unlock();
+          }
+          contents.copyTo(entries);
+        } finally {
+          gate.release();
+        }
+      } else {
+        contents.copyTo(entries);
+      }
+      String id = minutes + "." + timestamp;
+      String name = WINDOW_PREFIX + id + "." + this.sequence;
+      try (Writer writer = new Writer(new File(directory, name))) {
+        writer.ensure(4 + 4 + 4 + 8 + 8 + 4 + 4 * positions.length + 4);
+        writer.buffer.putInt(MAGIC);
+        writer.buffer.putInt(VERSION);
+        writer.buffer.putInt(minutes);
+        writer.buffer.putLong(timestamp);
+        writer.buffer.putLong(gate != null ? this.sequence : -1);
+        writer.buffer.putInt(positions.length);
+        for (int position : positions) {
+          writer.buffer.putInt(position);
+        }
+        writer.buffer.putInt(entries.size());
+        for (Entry entry : entries) {
+          writer.add(minutes, entry.metric, entry.tags, entry.dps);
+        }
+        writer.finish();
+      }
+      this.files.put(id, name);
+      this.written++;
+    }
+  }
+
+  /**
+   * Writes a file through a mapping that is extended in chunks as it grows.
+   */
+  private static class Writer implements AutoCloseable {
+    private final RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private long mapped = 0;
+
+    Writer(final File path) throws IOException {
+      this.file = new RandomAccessFile(path, "rw");
+      this.file.setLength(0);
+    }
+
+    void add(final int minutes, final String metric, final Map<String, String> tags,
+             final DataPoints dps) throws IOException {
+      byte[] series = encodeSeries(metric, tags);
+      QuantileSketch sketch = dps.getSketch();
+      GorillaStream raw = dps.getRaw();
+      Map<SeriesKey, double[]> members = dps.getMembers();
+      ensure(4 + 8 + 4 + series.length + 8 * 5 + 1 + (sketch == null ? 0 : sketch.serializedSize())
+              + 1 + 8 * 7 + 1 + (raw == null ? 0 : raw.serializedSize()) + 4 + 32 * members.size());
+      this.buffer.putInt(minutes);
+      this.buffer.putLong(dps.getTimestamp());
+      this.buffer.putInt(series.length);
+      this.buffer.put(series);
+      this.buffer.putLong(dps.getCount());
+      this.buffer.putDouble(dps.getSum());
+      this.buffer.putDouble(dps.getMin());
+      this.buffer.putDouble(dps.getMax());
+      this.buffer.putDouble(dps.getLast());
+      if (sketch == null) {
+        this.buffer.put((byte) 0);
+      } else {
+        this.buffer.put((byte) 1);
+        sketch.serialize(this.buffer);
+      }
+      if (dps.getFirstTime() < 0) {
+        this.buffer.put((byte) 0);
+      } else {
+        this.buffer.put((byte) 1);
+        this.buffer.putLong(dps.getFirstTime());
+        this.buffer.putDouble(dps.getFirstValue());
+        this.buffer.putLong(dps.getLastTime());
+        this.buffer.putDouble(dps.getLastValue());
+        this.buffer.putDouble(dps.getIncrease());
+        this.buffer.putDouble(dps.getCounterMax());
+        this.buffer.putDouble(dps.getResetValue());
+      }
+      if (raw == null) {
+        this.buffer.put((byte) 0);
+      } else {
+        this.buffer.put((byte) 1);
+        raw.serialize(this.buffer);
+      }
+      this.buffer.putInt(members.size());
+      for (Map.Entry<SeriesKey, double[]> member : members.entrySet()) {
+        this.buffer.putLong(member.getKey().getHi());
+        this.buffer.putLong(member.getKey().getLo());
+        this.buffer.putDouble(member.getValue()[0]);
+        this.buffer.putDouble(member.getValue()[1]);
+      }
+    }
+
+    void finish() throws IOException {
+      long length = this.mapped - this.buffer.remaining();
+      this.buffer.force();
+      this.file.setLength(length);
+      this.file.getChannel().force(true);
+    }
+
+    void ensure(final int bytes) throws IOException {
+      if (this.buffer != null && this.buffer.remaining() >= bytes) {
+        return;
+      }
+      long start = this.buffer == null ? 0 : this.mapped - this.buffer.remaining();
+      if (this.buffer != null) {
+        this.buffer.force();
+        DirectBuffers.free(this.buffer);
+      }
+      this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, start,
+              Math.max(SNAPSHOT_CHUNK, bytes));
+      this.mapped = start + this.buffer.capacity();
+    }
+
+    public void close() throws IOException {
+      DirectBuffers.free(this.buffer);
+      this.file.close();
+    }
+  }
+}
@@ -0,0 +1,306 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.DataPoints;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Decides how the series of the metrics it matches are rolled up: which
+ * aggregates are written, at which resolutions, and which tags are dropped
+ * so that series are pre-aggregated into groups. A policy is written as a
+ * metric pattern followed by options, e.g.
+ * <pre>
+ * sys.cpu.* aggregates=avg,max windows=5,60 where=dc=us-east drop=host
+ * </pre>
+ * The pattern is an exact metric name, a prefix ending in {@code *}, or a
+ * regular expression between slashes. {@code where} only applies the policy
+ * to series whose tags match, with {@code *} matching any value, and
+ * {@code aggregates=none} keeps the matched series out of rollups.
+ * <p/>
+ * {@code type=counter} marks monotonic counters, which can also be rolled
+ * up as their {@code rate} per second and their {@code delta} over the
+ * window. {@code counter_max} is the value such a counter wraps around at
+ * and {@code reset_value} the highest plausible rate, above which a drop is
+ * taken as a reset rather than a wraparound.
+ * <p/>
+ * The exact {@code median} and the number of {@code distinct} values need
+ * every datapoint, so series rolled up with either retain their raw
+ * datapoints in compressed form until the window closes.
+ * <p/>
+ * The {@code sum} of a group is the sum of its members' averages over the
+ * window, so it is the group's total no matter how often the members report.
+ */
+class RollupPolicy {
+  static final String AVG = "avg";
+  static final String SUM = "sum";
+  static final String MIN = "min";
+  static final String MAX = "max";
+  static final String COUNT = "count";
+  static final String LAST = "last";
+  static final String RATE = "rate";
+  static final String DELTA = "delta";
+  static final String MEDIAN = "median";
+  static final String DISTINCT = "distinct";
+  static final String QUANTILES = "quantiles";
+  static final Set<String> AGGREGATES = new HashSet<String>(
+          Arrays.asList(AVG, SUM, MIN, MAX, COUNT, LAST, RATE, DELTA, MEDIAN, DISTINCT));
+
+  /** The policy of metrics that match no configured one. */
+  static final RollupPolicy DEFAULT = new RollupPolicy("*", Integer.MAX_VALUE, new String[] { AVG },
+          true, null, new HashMap<String, String>(), new HashSet<String>());
+
+  private final String pattern;
+  private final int index;
+  private final String[] aggregates;
+  private final boolean quantiles;
+  private final Set<Integer> windows;
+  private final Map<String, String> where;
+  private final Set<String> dropped;
+  private boolean counter = false;
+  private double counterMax = 0;
+  private double resetValue = 0;
+  private final boolean exact;
+
+  RollupPolicy(final String pattern, final int index, final String[] aggregates, final boolean quantiles,
+               final Set<Integer> windows, final Map<String, String> where, final Set<String> dropped) {
+    this.pattern = pattern;
+    this.index = index;
+    this.aggregates = aggregates;
+    this.quantiles = quantiles;
+    this.windows = windows;
+    this.where = where;
+    this.dropped = dropped;
+    List<String> chosen = Arrays.asList(aggregates);
+    this.exact = chosen.contains(MEDIAN) || chosen.contains(DISTINCT);
+    for (String tagk : where.keySet()) {
+      // a group has to match the same policy as the series folded into it
+      if (dropped.contains(tagk)) {
+        throw new IllegalArgumentException("Policy " + pattern + " filters on dropped tag " + tagk);
+      }
+    }
+  }
+
+  /**
+   * @param index the position of the policy in its configuration; when
+   * several policies match a series the first one wins
+   */
+  static RollupPolicy parse(final String line, final int index) {
+    String[] parts = line.trim().split("\\s+");
+    String[] aggregates = null;
+    boolean quantiles = true;
+    boolean counter = false;
+    double counterMax = 0;
+    double resetValue = 0;
+    Set<Integer> windows = null;
+    Map<String, String> where = new LinkedHashMap<String, String>();
+    Set<String> dropped = new HashSet<String>();
+    for (int i = 1; i < parts.length; i++) {
+      int eq = parts[i].indexOf('=');
+      if (eq <= 0) {
+        throw new IllegalArgumentException("Unrecognized policy option " + parts[i] + " in " + line);
+      }
+      String option = parts[i].substring(0, eq);
+      String[] values = parts[i].substring(eq + 1).split(",");
+      if (option.equals("aggregates")) {
+        quantiles = false;
+        Set<String> chosen = new HashSet<String>();
+        for (String value : values) {
+          if (value.equals(QUANTILES)) {
+            quantiles = true;
+          } else if (AGGREGATES.contains(value)) {
+            chosen.add(value);
+          } else if (!value.equals("none")) {
+            throw new IllegalArgumentException("Unrecognized aggregate " + value + " in " + line);
+          }
+        }
+        aggregates = chosen.toArray(new String[chosen.size()]);
+        Arrays.sort(aggregates);
+      } else if (option.equals("windows")) {
+        windows = new HashSet<Integer>();
+        for (String value : values) {
+          windows.add(Integer.parseInt(value));
+        }
+      } else if (option.equals("where")) {
+        for (String value : values) {
+          String[] tag = value.split("=");
+          if (tag.length != 2) {
+            throw new IllegalArgumentException("Tag filters must look like tagk=tagv: " + value);
+          }
+          where.put(tag[0], tag[1]);
+        }
+      } else if (option.equals("drop")) {
+        dropped.addAll(Arrays.asList(values));
+      } else if (option.equals("type")) {
+        if (!values[0].equals("counter") && !values[0].equals("gauge")) {
+          throw new IllegalArgumentException("Metrics are either a gauge or a counter: " + line);
+        }
+        counter = values[0].equals("counter");
+      } else if (option.equals("counter_max")) {
+        counterMax = Double.parseDouble(values[0]);
+      } else if (option.equals("reset_value")) {
+        resetValue = Double.parseDouble(values[0]);
+      } else {
+        throw new IllegalArgumentException("Unrecognized policy option " + parts[i] + " in " + line);
+      }
+    }
+    if (aggregates == null) {
+      aggregates = new String[] { counter ? RATE : AVG };
+      quantiles = !counter;
+    }
+    for (String aggregate : aggregates) {
+      if (!counter && (aggregate.equals(RATE) || aggregate.equals(DELTA))) {
+        throw new IllegalArgumentException("Only counters have a " + aggregate + ": " + line);
+      }
+    }
+    RollupPolicy policy = new RollupPolicy(parts[0], index, aggregates, quantiles, windows, where, dropped);
+    policy.counter = counter;
+    policy.counterMax = counterMax;
+    policy.resetValue = resetValue;
+    return policy;
+  }
+
+  String getPattern() {
+    return pattern;
+  }
+
+  /**
+   * @return the pattern compiled as a regular expression, or null if it is
+   * an exact name or a prefix
+   */
+  Pattern getRegex() {
+    if (this.pattern.length() > 1 && this.pattern.startsWith("/") && this.pattern.endsWith("/")) {
+      return Pattern.compile(this.pattern.substring(1, this.pattern.length() - 1));
+    }
+    return null;
+  }
+
+  int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return true if the series is rolled up at all
+   */
+  boolean isEnabled() {
+    return this.aggregates.length > 0 || this.quantiles;
+  }
+
+  String[] getAggregates() {
+    return aggregates;
+  }
+
+  boolean hasQuantiles() {
+    return quantiles;
+  }
+
+  /**
+   * @return true if rollups are written at the given resolution
+   */
+  boolean emits(final int minutes) {
+    return this.windows == null || this.windows.contains(minutes);
+  }
+
+  boolean matchesTags(final Map<String, String> tags) {
+    for (Map.Entry<String, String> filter : this.where.entrySet()) {
+      String value = tags.get(filter.getKey());
+      if (value == null || !(filter.getValue().equals("*") || filter.getValue().equals(value))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  boolean isCounter() {
+    return counter;
+  }
+
+  double getCounterMax() {
+    return counterMax;
+  }
+
+  double getResetValue() {
+    return resetValue;
+  }
+
+  /**
+   * @return true if the series' raw datapoints have to be retained
+   */
+  boolean isExact() {
+    return exact;
+  }
+
+  boolean isGrouped() {
+    return !this.dropped.isEmpty();
+  }
+
+  /**
+   * @return the tags of the group the series belongs to
+   */
+  Map<String, String> group(final Map<String, String> tags) {
+    HashMap<String, String> grouped = new HashMap<String, String>(tags.size());
+    for (Map.Entry<String, String> tag : tags.entrySet()) {
+      if (!this.dropped.contains(tag.getKey())) {
+        grouped.put(tag.getKey(), tag.getValue());
+      }
+    }
+    return grouped;
+  }
+
+  /**
+   * @return the aggregate's value for a window of the given length, which
+   * is NaN for the rate and delta of a counter read fewer than twice
+   */
+  static double getValue(final DataPoints dps, final String aggregate, final long windowSeconds) {
+    if (aggregate.equals(AVG)) {
+      return dps.getAvg();
+    } else if (aggregate.equals(SUM)) {
+      return dps.getTotal();
+    } else if (aggregate.equals(MIN)) {
+      return dps.getMin();
+    } else if (aggregate.equals(MAX)) {
+      return dps.getMax();
+    } else if (aggregate.equals(COUNT)) {
+      return dps.getCount();
+    } else if (aggregate.equals(RATE)) {
+      return dps.getRate();
+    } else if (aggregate.equals(DELTA)) {
+      // extrapolated from the readings to the whole window
+      return dps.getRate() * windowSeconds;
+    } else if (aggregate.equals(MEDIAN)) {
+      return dps.getExactQuantile(0.5);
+    } else if (aggregate.equals(DISTINCT)) {
+      return dps.getDistinctCount();
+    }
+    return dps.getLast();
+  }
+
+  @Override
+  public String toString() {
+    return this.pattern + " aggregates=" + Arrays.toString(this.aggregates)
+            + (this.quantiles ? "+quantiles" : "") + " windows=" + (this.windows == null ? "all" : this.windows)
+            + " where=" + this.where + " drop=" + this.dropped + (this.counter ? " type=counter" : "");
+  }
+}
@@ -17,47 +17,466 @@ package io.tsdb.opentsdb.realtime;
  */
 
 import com.stumbleupon.async.Deferred;
+import io.tsdb.opentsdb.core.ConfinedDataPoints;
 import io.tsdb.opentsdb.core.DataPoints;
-import net.opentsdb.core.IncomingDataPoint;
+import io.tsdb.opentsdb.core.OffHeapArena;
+import io.tsdb.opentsdb.core.QuantileSketch;
+import io.tsdb.opentsdb.core.SeriesKey;
+import io.tsdb.opentsdb.core.TagDictionary;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.meta.Annotation;
 import net.opentsdb.stats.StatsCollector;
 import net.opentsdb.tsd.RTPublisher;
 import net.opentsdb.utils.Config;
-import org.apache.commons.codec.digest.DigestUtils;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
 import org.kohsuke.MetaInfServices;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static io.tsdb.opentsdb.core.Utils.floorTimestamp;
-import static io.tsdb.opentsdb.core.Utils.getTagString;
-import static io.tsdb.opentsdb.core.Utils.makeDatapoint;
+import static io.tsdb.opentsdb.core.Utils.toMillis;
+import static io.tsdb.opentsdb.core.Utils.toSeconds;
 
 @MetaInfServices
 public class RollupPublisher extends RTPublisher {
 
   private static final Logger LOG = LoggerFactory.getLogger(RollupPublisher.class);
-  private Map<String, DataPoints> dataPointsMap;
+  private static final int MAX_CACHED_POLICIES = 1 << 18;
+  // a kilobyte of HyperLogLog registers each
+  private static final int MAX_DISTINCT_METRICS = 4096;
+  private RollupTier[] tiers;
   private int minutes = 5;
+  private long allowedLateness = 60;
+  private int workers;
+  private double[] quantiles = new double[0];
+  private double quantileAccuracy = QuantileSketch.DEFAULT_ACCURACY;
+  private final TagDictionary dictionary = new TagDictionary();
+  private final AtomicLong watermark = new AtomicLong(0);
+  private final AtomicLong droppedLate = new AtomicLong(0);
+  private final AtomicLong droppedCapacity = new AtomicLong(0);
+  private final AtomicLong droppedCardinality = new AtomicLong(0);
+  private final AtomicLong sampledSeries = new AtomicLong(0);
+  private final AtomicLong evictedWindows = new AtomicLong(0);
+  private final AtomicLong openSeries = new AtomicLong(0);
+  private final AtomicBoolean evicting = new AtomicBoolean(false);
+  private long maxSeries = 0;
+  private double sampleRate = 0;
+  private PolicyMatcher policies;
+  private boolean perThread = false;
+  private IngestRing[] rings;
+  private long earlyFiringInterval = 0;
+  private volatile Timeout earlyFiring;
+  private Thread[] ringThreads;
+  private Thread[] slotOwners = new Thread[0];
+  private final ThreadLocal<Integer> threadSlot = new ThreadLocal<Integer>() {
+    @Override
+    protected Integer initialValue() {
+      return claimSlot();
+    }
+  };
+  private final AtomicLong unlogged = new AtomicLong(0);
+  private final AtomicBoolean checkpointPending = new AtomicBoolean(false);
+  private OffHeapArena arena;
+  private RollupCheckpoint checkpoint;
+  private ScheduledExecutorService checkpointer;
+  private IngestStats ingestStats;
   private String rollupKey = "tsd.rtpublisher.rollup.window";
-  private TSDB tsdb;
+  private String rollupsKey = "tsd.rtpublisher.rollup.windows";
+  private String latenessKey = "tsd.rtpublisher.rollup.allowed_lateness";
+  private String quantilesKey = "tsd.rtpublisher.rollup.quantiles";
+  private String accuracyKey = "tsd.rtpublisher.rollup.quantile_accuracy";
+  private String aggregationKey = "tsd.rtpublisher.rollup.aggregation";
+  private String ringThreadsKey = "tsd.rtpublisher.rollup.ring.threads";
+  private String ringSizeKey = "tsd.rtpublisher.rollup.ring.size";
+  private String ringWaitKey = "tsd.rtpublisher.rollup.ring.wait";
+  private String ringFullKey = "tsd.rtpublisher.rollup.ring.when_full";
+  private String earlyFiringKey = "tsd.rtpublisher.rollup.early_firing_interval";
+  private String storageKey = "tsd.rtpublisher.rollup.storage";
+  private String offHeapBytesKey = "tsd.rtpublisher.rollup.offheap.max_bytes";
+  private String maxSeriesKey = "tsd.rtpublisher.rollup.max_series";
+  private String sampleRateKey = "tsd.rtpublisher.rollup.overflow_sample_rate";
+  private String groupRulesKey = "tsd.rtpublisher.rollup.group_rules";
+  private String policiesKey = "tsd.rtpublisher.rollup.policies";
+  private String policyFileKey = "tsd.rtpublisher.rollup.policy_file";
+  private String checkpointDirKey = "tsd.rtpublisher.rollup.checkpoint.directory";
+  private String checkpointIntervalKey = "tsd.rtpublisher.rollup.checkpoint.interval";
+  private String checkpointLogBytesKey = "tsd.rtpublisher.rollup.checkpoint.log_bytes";
+  private String topKKey = "tsd.rtpublisher.rollup.top_k";
+  private String sinkKey = "tsd.rtpublisher.rollup.sink";
+  private String sinkBatchRowsKey = "tsd.rtpublisher.rollup.sink.batch_rows";
+  private String sinkInFlightKey = "tsd.rtpublisher.rollup.sink.max_inflight";
+  private String sinkJitterKey = "tsd.rtpublisher.rollup.sink.flush_jitter";
+  private String workersKey = "tsd.network.worker_threads";
+  private Timer timer;
+  private RollupSink sink;
 
   public void initialize(final TSDB tsdb) {
     LOG.info("init RollupPublisher");
-    this.tsdb = tsdb;
-    this.dataPointsMap = new HashMap<String, DataPoints>();
     Config config = tsdb.getConfig();
+    RollupSink sink = new TsdbRollupSink(tsdb);
+    if (config.hasProperty(sinkKey) && config.getString(sinkKey).equals("hbase")) {
+      int batchRows = 1000;
+      if (config.hasProperty(sinkBatchRowsKey)) {
+        batchRows = config.getInt(sinkBatchRowsKey);
+      }
+      int maxInFlight = 4;
+      if (config.hasProperty(sinkInFlightKey)) {
+        maxInFlight = config.getInt(sinkInFlightKey);
+      }
+      long jitter = 10;
+      if (config.hasProperty(sinkJitterKey)) {
+        jitter = config.getLong(sinkJitterKey);
+      }
+      sink = new HBaseRollupSink(tsdb, tsdb.getTimer(), batchRows, maxInFlight, jitter * 1000);
+      LOG.info("Writing rollups to HBase in batches of " + batchRows + " rows, " + maxInFlight
+              + " batches in flight, flushed within " + jitter + " seconds");
+    }
+    initialize(config, tsdb.getTimer(), sink);
+  }
+
+  void initialize(final Config config, final Timer timer, final RollupSink sink) {
+    this.timer = timer;
+    this.sink = sink;
     if (config.hasProperty(rollupKey)) {
-      this.minutes = tsdb.getConfig().getInt(rollupKey);
+      this.minutes = config.getInt(rollupKey);
+    }
+    if (config.hasProperty(latenessKey)) {
+      this.allowedLateness = config.getLong(latenessKey);
+    }
+    // every Netty worker calls publishDataPoint concurrently, so size the
+    // table's update concurrency to the worker pool instead of locking it
+    this.workers = Runtime.getRuntime().availableProcessors() * 2;
+    if (config.hasProperty(workersKey)) {
+      this.workers = config.getInt(workersKey);
+    }
+    String[] quantileLabels = new String[0];
+    if (config.hasProperty(quantilesKey)) {
+      String[] values = config.getString(quantilesKey).split(",");
+      this.quantiles = new double[values.length];
+      quantileLabels = new String[values.length];
+      for (int i = 0; i < values.length; i++) {
+        BigDecimal quantile = new BigDecimal(values[i].trim());
+        if (quantile.signum() < 0 || quantile.compareTo(BigDecimal.ONE) > 0) {
+          throw new IllegalArgumentException("Quantiles must be between 0 and 1: " + values[i]);
+        }
+        this.quantiles[i] = quantile.doubleValue();
+        // 0.95 is emitted as p95 and 0.999 as p99.9
+        quantileLabels[i] = quantile.movePointRight(2).stripTrailingZeros().toPlainString();
+      }
+      if (config.hasProperty(accuracyKey)) {
+        this.quantileAccuracy = config.getDouble(accuracyKey);
+      }
+      LOG.info("Tracking quantiles " + Arrays.toString(quantileLabels)
+              + " with relative accuracy " + this.quantileAccuracy);
+    }
+    if (config.hasProperty(storageKey) && config.getString(storageKey).equals("offheap")) {
+      if (this.quantiles.length > 0) {
+        throw new IllegalArgumentException("Quantile rollups require heap storage");
+      }
+      long maxBytes = 1L << 30;
+      if (config.hasProperty(offHeapBytesKey)) {
+        maxBytes = config.getLong(offHeapBytesKey);
+      }
+      this.arena = new OffHeapArena(maxBytes);
+      LOG.info("Keeping rollup state off heap, up to " + maxBytes + " bytes");
+    }
+    if (config.hasProperty(aggregationKey) && config.getString(aggregationKey).equals("per_thread")) {
+      if (this.arena != null) {
+        throw new IllegalArgumentException("Per-thread aggregation requires heap storage");
+      }
+      this.perThread = true;
+      LOG.info("Aggregating datapoints per ingest thread until windows close");
+    }
+    int[] resolutions = new int[] { this.minutes };
+    if (config.hasProperty(rollupsKey)) {
+      String[] windows = config.getString(rollupsKey).split(",");
+      resolutions = new int[windows.length];
+      for (int i = 0; i < windows.length; i++) {
+        resolutions[i] = Integer.parseInt(windows[i].trim());
+      }
+    }
+    this.tiers = new RollupTier[resolutions.length];
+    RollupTier next = null;
+    for (int i = resolutions.length - 1; i >= 0; i--) {
+      if (resolutions[i] <= 0) {
+        throw new IllegalArgumentException("Rollup windows must be positive: " + resolutions[i]);
+      }
+      if (next != null && next.getMinutes() % resolutions[i] != 0) {
+        throw new IllegalArgumentException("Rollup window of " + next.getMinutes()
+                + " minutes is not a multiple of " + resolutions[i] + " minutes");
+      }
+      this.tiers[i] = new RollupTier(resolutions[i], quantileLabels, next, this.workers);
+      next = this.tiers[i];
+      LOG.info("Using window of:" + resolutions[i] + " minutes");
+    }
+    LOG.info("Accepting datapoints up to " + this.allowedLateness + " seconds late");
+    List<String> lines = new ArrayList<String>();
+    if (config.hasProperty(policiesKey)) {
+      lines.addAll(Arrays.asList(config.getString(policiesKey).split(";")));
+    }
+    if (config.hasProperty(policyFileKey)) {
+      try {
+        lines.addAll(Files.readAllLines(Paths.get(config.getString(policyFileKey)), StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Unable to read rollup policies from "
+                + config.getString(policyFileKey), e);
+      }
+    }
+    if (config.hasProperty(groupRulesKey)) {
+      // metric:tagk,tagk is shorthand for a policy that drops those tags
+      for (String rule : config.getString(groupRulesKey).split(";")) {
+        String[] parts = rule.split(":");
+        if (parts.length != 2) {
+          throw new IllegalArgumentException("Group rules must look like metric:tagk,tagk: " + rule);
+        }
+        lines.add(parts[0].trim() + " aggregates=avg,sum,quantiles drop=" + parts[1].trim());
+      }
+    }
+    List<RollupPolicy> parsed = new ArrayList<RollupPolicy>();
+    for (String line : lines) {
+      if (!line.trim().isEmpty() && !line.trim().startsWith("#")) {
+        parsed.add(RollupPolicy.parse(line, parsed.size()));
+      }
+    }
+    for (RollupPolicy policy : parsed) {
+      if ((policy.isCounter() || policy.isExact() || policy.isGrouped()) && this.arena != null) {
+        throw new IllegalArgumentException("Counter, exact and grouped rollups require heap storage: " + policy);
+      }
+    }
+    if (!parsed.isEmpty()) {
+      this.policies = new PolicyMatcher(parsed, MAX_CACHED_POLICIES);
+      LOG.info("Loaded " + parsed.size() + " rollup policies");
+    }
+    if (config.hasProperty(maxSeriesKey)) {
+      this.maxSeries = config.getLong(maxSeriesKey);
+      if (config.hasProperty(sampleRateKey)) {
+        this.sampleRate = config.getDouble(sampleRateKey);
+        if (this.sampleRate < 0 || this.sampleRate > 1) {
+          throw new IllegalArgumentException("Overflow sample rate must be between 0 and 1: " + this.sampleRate);
+        }
+      }
+      LOG.info("Limiting rollups to " + this.maxSeries + " open series, sampling "
+              + this.sampleRate + " of new series beyond that");
+    }
+    if (config.hasProperty(topKKey) && config.getInt(topKKey) > 0) {
+      this.ingestStats = new IngestStats(config.getInt(topKKey), this.workers, MAX_DISTINCT_METRICS);
+      LOG.info("Reporting the top " + config.getInt(topKKey) + " metrics and tag values by point rate");
+    }
+    if (config.hasProperty(earlyFiringKey) && config.getLong(earlyFiringKey) > 0) {
+      this.earlyFiringInterval = config.getLong(earlyFiringKey);
+      scheduleEarlyFiring(this.earlyFiringInterval);
+      LOG.info("Writing provisional rollups of open windows every " + this.earlyFiringInterval + " seconds");
+    }
+    if (config.hasProperty(ringThreadsKey) && config.getInt(ringThreadsKey) > 0) {
+      startRings(config);
+    }
+    if (config.hasProperty(checkpointDirKey)) {
+      long interval = 30;
+      if (config.hasProperty(checkpointIntervalKey)) {
+        interval = config.getLong(checkpointIntervalKey);
+      }
+      int logBytes = 64 * 1024 * 1024;
+      if (config.hasProperty(checkpointLogBytesKey)) {
+        logBytes = config.getInt(checkpointLogBytesKey);
+      }
+      startCheckpoints(new File(config.getString(checkpointDirKey)), interval, logBytes);
+    }
+  }
+
+  /**
+   * Starts the aggregation threads that datapoints are handed to instead of
+   * being aggregated on the Netty worker that received them. Each thread
+   * drains its own ring, and a series always goes to the same ring.
+   */
+  private void startRings(final Config config) {
+    int threads = config.getInt(ringThreadsKey);
+    int size = 64 * 1024;
+    if (config.hasProperty(ringSizeKey)) {
+      size = config.getInt(ringSizeKey);
+    }
+    IngestRing.WaitStrategy wait = IngestRing.WaitStrategy.PARK;
+    if (config.hasProperty(ringWaitKey)) {
+      wait = IngestRing.WaitStrategy.valueOf(config.getString(ringWaitKey).toUpperCase());
+    }
+    boolean drop = false;
+    if (config.hasProperty(ringFullKey)) {
+      String whenFull = config.getString(ringFullKey);
+      if (!whenFull.equals("block") && !whenFull.equals("drop")) {
+        throw new IllegalArgumentException("Full rings either block or drop: " + whenFull);
+      }
+      drop = whenFull.equals("drop");
+    }
+    IngestRing.Handler handler = new IngestRing.Handler() {
+      public void handle(final String metric, final long timestamp, final double value,
+                         final Map<String, String> tags) {
+        store(metric, timestamp, value, tags);
+      }
+    };
+    this.rings = new IngestRing[threads];
+    this.ringThreads = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      this.rings[i] = new IngestRing(size, wait, drop, handler);
+      this.ringThreads[i] = new Thread(this.rings[i], "RollupIngest-" + i);
+      this.ringThreads[i].setDaemon(true);
+      this.ringThreads[i].start();
+    }
+    LOG.info("Handing datapoints to " + threads + " aggregation threads through rings of " + size
+            + " slots, " + (drop ? "dropping" : "waiting") + " when full");
+  }
+
+  /**
+   * Stops the aggregation threads once they have drained their rings.
+   */
+  void stopRings() {
+    if (this.rings == null) {
+      return;
+    }
+    for (IngestRing ring : this.rings) {
+      ring.stop();
+    }
+    for (Thread thread : this.ringThreads) {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Restores the windows that were open when the last process stopped and
+   * starts checkpointing the current ones on a thread of its own, so a slow
+   * disk never holds up the TSDB timer.
+   */
+  private void startCheckpoints(final File directory, final long interval, final int logBytes) {
+    RollupCheckpoint restored = new RollupCheckpoint(directory, logBytes);
+    try {
+      long mark = restored.restore(new RollupCheckpoint.Restorer() {
+        public void restoreWindow(final int minutes, final String metric, final Map<String, String> tags,
+                                  final DataPoints dps) {
+          for (RollupTier tier : tiers) {
+            if (tier.getMinutes() == minutes) {
+              SeriesKey key = SeriesKey.of(metric, tags);
+              int[] series = dictionary.encode(metric, tags);
+              merge(tier, dps.getTimestamp(), key, series, dps);
+              dictionary.release(series);
+            }
+          }
+        }
+
+        public void replayPoint(final String metric, final Map<String, String> tags, final SeriesKey member,
+                                final long timestamp, final double value) {
+          store(metric, timestamp, value, tags, member);
+        }
+
+        public long windowOf(final long timestamp) {
+          return floorTimestamp(timestamp, tiers[0].getWindowSeconds());
+        }
+      });
+      advanceWatermark(mark);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Unable to restore rollups from " + directory, e);
+    }
+    // only log new datapoints once the replay is done
+    this.checkpoint = restored;
+    this.checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(runnable, "RollupCheckpoint");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.checkpointer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        writeCheckpoint();
+      }
+    }, interval, interval, TimeUnit.SECONDS);
+    LOG.info("Checkpointing open rollup windows to " + directory + " every " + interval + " seconds");
+  }
+
+  /**
+   * Writes every open window that changed since the last checkpoint.
+   */
+  void writeCheckpoint() {
+    this.checkpointPending.set(false);
+    try {
+      this.checkpoint.checkpoint(this.watermark.get(), new RollupCheckpoint.Source() {
+        public void writeTo(final RollupCheckpoint.Snapshot snapshot) throws IOException {
+          for (final RollupTier tier : tiers) {
+            for (final RollupWindow window : tier.getWindows().values()) {
+              if (!window.isUnsaved() && snapshot.keep(tier.getMinutes(), window.getTimestamp())) {
+                continue;
+              }
+              // only the finest tier is written to the log
+              snapshot.write(tier.getMinutes(), window.getTimestamp(), tier == tiers[0] ? window : null,
+                      new RollupCheckpoint.Contents() {
+                public void copyTo(final List<RollupCheckpoint.Entry> entries) {
+                  window.clearUnsaved();
+                  window.forEach(new RollupWindow.Visitor() {
+                    public void visit(final SeriesKey key, final DataPoints dps) {
+                      entries.add(new RollupCheckpoint.Entry(dictionary.getMetric(dps.getSeries()),
+                              dictionary.getTags(dps.getSeries()), dps));
+                    }
+                  });
+                }
+              });
+            }
+          }
+        }
+      });
+    } catch (Exception e) {
+      LOG.error("Unable to checkpoint rollup windows", e);
+    }
+  }
+
+  /**
+   * Checkpoints ahead of schedule when the log between checkpoints fills up.
+   */
+  private void requestCheckpoint() {
+    this.unlogged.incrementAndGet();
+    if (this.checkpointPending.compareAndSet(false, true)) {
+      this.checkpointer.execute(new Runnable() {
+        public void run() {
+          writeCheckpoint();
+        }
+      });
     }
-    LOG.info("Using window of:" + this.minutes + " minutes");
   }
 
   public Deferred<Object> shutdown() {
+    if (this.checkpointer != null) {
+      this.checkpointer.shutdown();
+    }
+    if (this.earlyFiring != null) {
+      this.earlyFiring.cancel();
+    }
+    stopRings();
     this.storeRollups();
-    return null;
+    if (this.checkpoint != null) {
+      try {
+        this.checkpoint.close();
+      } catch (IOException e) {
+        LOG.warn("Unable to close the rollup log", e);
+      }
+    }
+    return this.sink.flush();
   }
 
   public String version() {
@@ -65,23 +484,58 @@ public class RollupPublisher extends RTPublisher {
   }
 
   public void collectStats(final StatsCollector collector) {
+    collector.record("rollup.datapoints.dropped", this.droppedLate.get(), "reason=late");
+    collector.record("rollup.datapoints.dropped", this.droppedCapacity.get(), "reason=capacity");
+    collector.record("rollup.datapoints.dropped", this.droppedCardinality.get(), "reason=cardinality");
+    collector.record("rollup.series.open", this.openSeries.get());
+    collector.record("rollup.series.sampled", this.sampledSeries.get());
+    collector.record("rollup.windows.evicted", this.evictedWindows.get());
+    if (this.arena != null) {
+      collector.record("rollup.offheap.bytes", this.arena.getReservedBytes());
+    }
+    collector.record("rollup.watermark", this.watermark.get());
+    collector.record("rollup.dictionary.size", this.dictionary.size());
+    if (this.checkpoint != null) {
+      collector.record("rollup.checkpoint.unlogged", this.unlogged.get());
+    }
+    if (this.rings != null) {
+      long depth = 0;
+      long dropped = 0;
+      long waits = 0;
+      for (IngestRing ring : this.rings) {
+        depth += ring.getDepth();
+        dropped += ring.getDropped();
+        waits += ring.getWaits();
+      }
+      collector.record("rollup.ring.depth", depth);
+      collector.record("rollup.ring.waits", waits);
+      collector.record("rollup.datapoints.dropped", dropped, "reason=ring_full");
+    }
+    if (this.ingestStats != null) {
+      this.ingestStats.collect(collector);
+    }
   }
 
   public Deferred<Object> publishDataPoint(final String metric,
                                            final long timestamp, final long value, final Map<String, String> tags,
                                            final byte[] tsuid) {
+    if (isRollup(metric)) {
+      // our own rollups come back through the TSDB write path
+      return Deferred.fromResult(null);
+    }
     LOG.trace("Storing Datapoint: " + metric + " " + timestamp + " " + value);
-    IncomingDataPoint dp = makeDatapoint(metric + "." + Objects.toString(this.minutes) + "m-avg", timestamp, value, tags);
-    storeDatapoint(dp);
+    ingest(metric, timestamp, value, tags);
     return new Deferred<Object>();
   }
 
   public Deferred<Object> publishDataPoint(final String metric,
                                            final long timestamp, final double value, final Map<String, String> tags,
                                            final byte[] tsuid) {
+    if (isRollup(metric)) {
+      return Deferred.fromResult(null);
+    }
     LOG.trace("Storing Datapoint: " + metric + " " + timestamp + " " + value);
-    IncomingDataPoint dp = makeDatapoint(metric + "." + Objects.toString(this.minutes) + "m-avg", timestamp, value, tags);
-    storeDatapoint(dp);
+    ingest(metric, timestamp, value, tags);
     return new Deferred<Object>();
   }
 
@@ -90,39 +544,664 @@ public class RollupPublisher extends RTPublisher {
     return null;
   }
 
-  private void storeDatapoint(final IncomingDataPoint dp) {
-    long ts = floorTimestamp(new Date(dp.getTimestamp()), this.minutes).getTime();
-    String tagString = getTagString(dp.getTags());
-    String key = DigestUtils.md5Hex(dp.getMetric() + Objects.toString(ts) + tagString);
-    LOG.trace("Key evaluates to: " + key);
-    if (!this.dataPointsMap.containsKey(key)) {
-      LOG.trace("adding new dps key, timestamp: " + ts);
-      this.dataPointsMap.put(key, new DataPoints(ts, dp));
+  private void ingest(final String metric, final long timestamp, final double value,
+                      final Map<String, String> tags) {
+    if (this.rings == null) {
+      store(metric, timestamp, value, tags);
+      return;
+    }
+    int hash = metric.hashCode() * 31 + tags.hashCode();
+    this.rings[(hash & Integer.MAX_VALUE) % this.rings.length].publish(metric, timestamp, value, tags);
+  }
+
+  private boolean isRollup(final String metric) {
+    for (RollupTier tier : this.tiers) {
+      if (tier.isRollup(metric)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds the datapoint to its series' accumulator in the finest tier,
+   * creating the window and the accumulator if this is the first datapoint
+   * for either. A closed window has already been removed from its tier, so
+   * an add that is rejected because of a close simply looks the window up
+   * again. Datapoints later than the allowed lateness are dropped, and a
+   * series whose policy groups it is accumulated per group instead.
+   */
+  private void store(final String metric, final long timestamp, final double value,
+                     final Map<String, String> pointTags) {
+    store(metric, timestamp, value, pointTags, null);
+  }
+
+  /**
+   * @param replayed the member of a group that a replayed datapoint was
+   * logged for, or null to take the series of the datapoint itself
+   */
+  private void store(final String metric, final long timestamp, final double value,
+                     final Map<String, String> pointTags, final SeriesKey replayed) {
+    RollupTier tier = this.tiers[0];
+    long ts = floorTimestamp(timestamp, tier.getWindowSeconds());
+    long watermark = advanceWatermark(toSeconds(timestamp));
+    if (ts + tier.getWindowSeconds() + this.allowedLateness <= watermark) {
+      LOG.trace("dropping late datapoint for window " + ts + ", watermark: " + watermark);
+      this.droppedLate.incrementAndGet();
+      return;
+    }
+    Map<String, String> tags = pointTags;
+    SeriesKey key = SeriesKey.of(metric, pointTags);
+    if (this.ingestStats != null) {
+      this.ingestStats.record(metric, pointTags, key);
+    }
+    RollupPolicy policy = RollupPolicy.DEFAULT;
+    SeriesKey member = null;
+    if (this.policies != null) {
+      PolicyMatcher.Resolution resolution = this.policies.resolve(key, metric, pointTags);
+      policy = resolution.getPolicy();
+      if (!policy.isEnabled()) {
+        return;
+      }
+      if (policy.isGrouped()) {
+        member = replayed == null ? key : replayed;
+      }
+      key = resolution.getKey();
+      tags = resolution.getTags();
+    }
+    int[] series = null;
+    // the log stripe is held across each change and its log record
+    RollupCheckpoint.Stripe stripe = this.checkpoint == null ? null : this.checkpoint.enter();
+    try {
+      while (true) {
+        RollupWindow window = getWindow(tier, ts);
+        if (window == null) {
+          // the series may have been encoded for a window closed meanwhile
+          if (series != null) {
+            this.dictionary.release(series);
+          }
+          this.droppedLate.incrementAndGet();
+          return;
+        }
+        if (stripe != null && window.isHeld()) {
+          // the window is being copied for a checkpoint
+          stripe.unlock();
+          window.awaitRelease();
+          stripe.lock();
+          continue;
+        }
+        if (this.maxSeries > 0) {
+          window.touch(System.currentTimeMillis() / 1000);
+        }
+        if (this.perThread) {
+          RollupWindow.Partial partial = window.getPartial(this.threadSlot.get());
+          if (partial == null) {
+            continue;
+          }
+          DataPoints dps = partial.get(key);
+          if (dps == null) {
+            // the budget counts a series once, however many threads write it
+            if (!window.contains(key) && !admit(key)) {
+              return;
+            }
+            dps = new ConfinedDataPoints(this.dictionary.encode(metric, tags), ts, newSketch());
+            int result = window.create(partial, key, dps);
+            if (result == RollupWindow.CLOSED) {
+              this.dictionary.release(dps.getSeries());
+              continue;
+            }
+            if (result == RollupWindow.CREATED) {
+              this.openSeries.incrementAndGet();
+            }
+            logSeries(stripe, key, metric, tags);
+          }
+          // only this thread adds to its partial, readers hold it out instead
+          if (!partial.enter()) {
+            continue;
+          }
+          try {
+            addSummary(dps, policy, member, timestamp, value);
+            if (policy.isExact()) {
+              dps.retain(toMillis(timestamp), value);
+            }
+          } finally {
+            partial.exit();
+          }
+          markDirty(window);
+          logPoint(stripe, window, key, member, timestamp, value);
+          return;
+        }
+        OffHeapSeriesTable table = window.getTable();
+        if (table == null) {
+          DataPoints dps = window.get(key);
+          if (dps == null) {
+            if (!admit(key)) {
+              return;
+            }
+            dps = create(window, key, this.dictionary.encode(metric, tags));
+            if (dps != null) {
+              logSeries(stripe, key, metric, tags);
+            }
+          }
+          if (dps != null && add(dps, policy, member, timestamp, value)) {
+            markDirty(window);
+            logPoint(stripe, window, key, member, timestamp, value);
+            return;
+          }
+          continue;
+        }
+        // off heap the series is only encoded once the table reports it new
+        int result = table.add(key, series, value);
+        if (result == OffHeapSeriesTable.MISSING) {
+          if (!admit(key)) {
+            if (series != null) {
+              this.dictionary.release(series);
+            }
+            return;
+          }
+          if (series == null) {
+            series = this.dictionary.encode(metric, tags);
+          }
+        } else if (result != OffHeapSeriesTable.CLOSED) {
+          if (series != null && result != OffHeapSeriesTable.INSERTED) {
+            this.dictionary.release(series);
+          }
+          if (result == OffHeapSeriesTable.FULL) {
+            this.droppedCapacity.incrementAndGet();
+            return;
+          }
+          if (result == OffHeapSeriesTable.INSERTED) {
+            this.openSeries.incrementAndGet();
+            logSeries(stripe, key, metric, tags);
+          }
+          markDirty(window);
+          logPoint(stripe, window, key, member, timestamp, value);
+          return;
+        }
+      }
+    } finally {
+      if (stripe != null) {
+        stripe.unlock();
+      }
+    }
+  }
+
+  /**
+   * @return false if the accumulator has been closed
+   */
+  private static boolean add(final DataPoints dps, final RollupPolicy policy, final SeriesKey member,
+                             final long timestamp, final double value) {
+    if (!policy.isExact()) {
+      return addSummary(dps, policy, member, timestamp, value);
+    }
+    // held across both so a close cannot slip in between
+    synchronized (dps) {
+      if (!addSummary(dps, policy, member, timestamp, value)) {
+        return false;
+      }
+      dps.retain(toMillis(timestamp), value);
+      return true;
+    }
+  }
+
+  private static boolean addSummary(final DataPoints dps, final RollupPolicy policy, final SeriesKey member,
+                                    final long timestamp, final double value) {
+    if (policy.isCounter()) {
+      return dps.addCounter(toMillis(timestamp), value, policy.getCounterMax(), policy.getResetValue());
+    }
+    if (member != null) {
+      return dps.addMember(member, value);
+    }
+    return dps.addDatapoint(value);
+  }
+
+  private void markDirty(final RollupWindow window) {
+    if (this.earlyFiringInterval > 0) {
+      window.markDirty();
+    }
+  }
+
+  private void logSeries(final RollupCheckpoint.Stripe stripe, final SeriesKey key, final String metric,
+                         final Map<String, String> tags) {
+    if (stripe != null && !this.checkpoint.logSeries(stripe, key, metric, tags)) {
+      requestCheckpoint();
+    }
+  }
+
+  private void logPoint(final RollupCheckpoint.Stripe stripe, final RollupWindow window, final SeriesKey key,
+                        final SeriesKey member, final long timestamp, final double value) {
+    if (stripe == null) {
+      return;
+    }
+    window.markUnsaved();
+    if (!this.checkpoint.logPoint(stripe, key, member, timestamp, value)) {
+      requestCheckpoint();
+    }
+  }
+
+  /**
+   * Adds a new accumulator for the series to the window, handing it the
+   * caller's dictionary reference on the series. If another thread got
+   * there first or the window has closed the reference is released again.
+   * @return the accumulator in the window, or null if it is closed
+   */
+  private DataPoints create(final RollupWindow window, final SeriesKey key, final int[] series) {
+    DataPoints created = newDataPoints(series, window.getTimestamp());
+    DataPoints dps = window.create(key, created);
+    if (dps != created) {
+      this.dictionary.release(series);
     } else {
-      LOG.trace("adding to existing dps, timestamp: " + ts);
-      DataPoints dps = this.dataPointsMap.get(key);
-      dps.addDatapoint(dp);
-      this.dataPointsMap.replace(key, dps);
+      this.openSeries.incrementAndGet();
     }
+    return dps;
   }
 
-  private void storeRollups() {
-    if (this.dataPointsMap.size()== 0) {
-      LOG.debug("No DataPoints to consider for rollup");
+  /**
+   * Decides whether a series that is new to its window may be tracked. Past
+   * the series budget new series are rejected unless they fall into the
+   * sampled fraction; sampling is by series key, so a sampled series keeps
+   * all of its datapoints. A rejection also closes the least recently
+   * updated window that has already ended, to make room for later series.
+   */
+  private boolean admit(final SeriesKey key) {
+    if (this.maxSeries <= 0 || this.openSeries.get() < this.maxSeries) {
+      return true;
+    }
+    if (this.sampleRate > 0 && (key.getLo() & Long.MAX_VALUE) % 10000 < this.sampleRate * 10000) {
+      this.sampledSeries.incrementAndGet();
+      return true;
+    }
+    this.droppedCardinality.incrementAndGet();
+    evictLeastRecent();
+    return false;
+  }
+
+  /**
+   * Closes the window that has gone longest without a write among those
+   * whose end the watermark has passed, across all tiers. Windows still in
+   * progress are never evicted, so no partial rollup is written over a
+   * complete one. Only one thread evicts at a time; the others simply
+   * carry on.
+   */
+  private void evictLeastRecent() {
+    if (!this.evicting.compareAndSet(false, true)) {
       return;
     }
-    LOG.debug("Considering " + this.dataPointsMap.size() + " DataPoints for rollup");
-    long maximumTS = floorTimestamp(new Date(), this.minutes).getTime();
-    for (Map.Entry<String, DataPoints> entry : this.dataPointsMap.entrySet()) {
-      DataPoints dps = entry.getValue();
-      if (dps.getTimestamp() < (maximumTS)) {
-        IncomingDataPoint avgDP = dps.getAvgValue();
-        LOG.debug( "Key: " + entry.getKey() + " Metric: " + dps.getMetric() +
-                " Timestamp: " + Objects.toString(dps.getTimestamp()) +
-                " Tags: " + getTagString(dps.getTags()) + " Avg: " + avgDP.getValue());
-        LOG.trace("removing " + entry.getKey() + " from dataPointsMap");
-        this.dataPointsMap.remove(entry.getKey());
+    try {
+      long watermark = this.watermark.get();
+      RollupTier oldestTier = null;
+      RollupWindow oldest = null;
+      for (RollupTier tier : this.tiers) {
+        for (RollupWindow window : tier.getWindows().values()) {
+          if (window.getEnd() > watermark) {
+            continue;
+          }
+          // among windows updated in the same second the oldest goes first
+          if (oldest == null || window.getUpdated() < oldest.getUpdated()
+                  || (window.getUpdated() == oldest.getUpdated() && window.getTimestamp() < oldest.getTimestamp())) {
+            oldestTier = tier;
+            oldest = window;
+          }
+        }
       }
+      if (oldest != null) {
+        LOG.debug("Evicting " + oldestTier.getMinutes() + "m window " + oldest.getTimestamp()
+                + " with " + oldest.size() + " series");
+        this.evictedWindows.incrementAndGet();
+        closeWindow(oldestTier, oldest.getTimestamp());
+      }
+    } finally {
+      this.evicting.set(false);
+    }
+  }
+
+  private DataPoints newDataPoints(final int[] series, final long timestamp) {
+    return new DataPoints(series, timestamp, newSketch());
+  }
+
+  private QuantileSketch newSketch() {
+    if (this.quantiles.length == 0) {
+      return null;
+    }
+    return new QuantileSketch(this.quantileAccuracy, QuantileSketch.DEFAULT_MAX_BINS);
+  }
+
+  /**
+   * Gives the calling thread a slot of its own in every window's partials,
+   * reusing the slot of a thread that has died so short-lived threads do
+   * not grow the partials without bound.
+   */
+  private synchronized int claimSlot() {
+    Thread current = Thread.currentThread();
+    for (int i = 0; i < this.slotOwners.length; i++) {
+      Thread owner = this.slotOwners[i];
+      if (owner == null || !owner.isAlive()) {
+        this.slotOwners[i] = current;
+        return i;
+      }
+    }
+    int slot = this.slotOwners.length;
+    this.slotOwners = Arrays.copyOf(this.slotOwners, Math.max(1, slot * 2));
+    this.slotOwners[slot] = current;
+    return slot;
+  }
+
+  /**
+   * Moves the watermark up to the given event time. Timestamps from the
+   * future are clamped to the local clock so a single skewed collector
+   * cannot make everyone else's data look late.
+   * @return the current watermark
+   */
+  private long advanceWatermark(final long seconds) {
+    long current = this.watermark.get();
+    // most points are not ahead of the watermark and only read it
+    if (seconds <= current) {
+      return current;
+    }
+    long eventTime = Math.min(seconds, System.currentTimeMillis() / 1000);
+    while (eventTime > current) {
+      if (this.watermark.compareAndSet(current, eventTime)) {
+        return eventTime;
+      }
+      current = this.watermark.get();
+    }
+    return current;
+  }
+
+  /**
+   * @return the open window starting at ts, or null if that window was
+   * already closed and may not be opened again
+   */
+  private RollupWindow getWindow(final RollupTier tier, final long ts) {
+    RollupWindow window = tier.getWindows().get(ts);
+    if (window != null) {
+      return window;
+    }
+    if (tier.isRetired(ts)) {
+      return null;
+    }
+    RollupWindow created = new RollupWindow(ts, ts + tier.getWindowSeconds(), this.workers, this.arena);
+    window = tier.getWindows().putIfAbsent(ts, created);
+    if (window != null) {
+      return window;
+    }
+    LOG.debug("opened " + tier.getMinutes() + "m window " + ts + " closing at " + created.getEnd());
+    long closeAt = (created.getEnd() + this.allowedLateness) * 1000;
+    // a backfilled window is old by the local clock, give it one lateness
+    // period for the rest of its data to arrive before the first check
+    long delay = Math.max(this.allowedLateness * 1000, closeAt - System.currentTimeMillis());
+    scheduleClose(tier, created, delay, this.watermark.get());
+    return created;
+  }
+
+  private void scheduleClose(final RollupTier tier, final RollupWindow window, final long delay,
+                             final long lastWatermark) {
+    window.setTimeout(this.timer.newTimeout(new TimerTask() {
+      public void run(final Timeout timeout) {
+        long current = watermark.get();
+        if (current < window.getEnd() + allowedLateness && current != lastWatermark) {
+          // event time has not passed the window and its stream is still
+          // moving, more data may arrive for it
+          scheduleClose(tier, window, Math.max(1000, allowedLateness * 1000), current);
+        } else if (tier != tiers[0] && getPrevious(tier).hasOpenWindow(window.getTimestamp(), window.getEnd())) {
+          // wait for the finer windows that feed this one to be merged in
+          scheduleClose(tier, window, 1000, lastWatermark);
+        } else {
+          closeWindow(tier, window.getTimestamp());
+        }
+      }
+    }, delay, TimeUnit.MILLISECONDS));
+  }
+
+  private RollupTier getPrevious(final RollupTier tier) {
+    for (int i = 1; i < this.tiers.length; i++) {
+      if (this.tiers[i] == tier) {
+        return this.tiers[i - 1];
+      }
+    }
+    return null;
+  }
+
+  RollupTier getTier(final int index) {
+    return this.tiers[index];
+  }
+
+  /**
+   * Closes the window starting at the given timestamp, writes its rollups
+   * to the sink, merges them into the next coarser tier and releases all of
+   * its series state.
+   */
+  void closeWindow(final RollupTier tier, final long ts) {
+    RollupWindow window = tier.getWindows().get(ts);
+    if (window == null) {
+      return;
+    }
+    // a coarse window is fed for up to two lateness periods after its end
+    tier.pruneRetired(this.watermark.get() - 2 * this.allowedLateness);
+    // before the removal, so no writer can open the window again while late
+    // datapoints for it are still accepted
+    tier.retire(ts);
+    if (!tier.getWindows().remove(ts, window)) {
+      return;
+    }
+    LOG.debug("Closing " + tier.getMinutes() + "m window " + ts + " with " + window.size() + " series");
+    final RollupTier next = tier.getNext();
+    RollupWindow.Visitor emitter = new RollupWindow.Visitor() {
+      public void visit(final SeriesKey key, final DataPoints dps) {
+        if (dps.getCount() > 0) {
+          emit(tier, key, dps);
+          if (next != null) {
+            cascade(next, key, dps);
+          }
+        }
+        openSeries.decrementAndGet();
+        dictionary.release(dps.getSeries());
+      }
+    };
+    close(window, emitter);
+  }
+
+  /**
+   * Closes a window and hands the visitor each of its series once, with the
+   * partials of a series written by several threads combined.
+   */
+  private void close(final RollupWindow window, final RollupWindow.Visitor visitor) {
+    if (!this.perThread) {
+      window.close(visitor);
+      return;
+    }
+    final HashMap<SeriesKey, DataPoints> merged = new HashMap<SeriesKey, DataPoints>();
+    window.close(new RollupWindow.Visitor() {
+      public void visit(final SeriesKey key, final DataPoints dps) {
+        DataPoints combined = merged.get(key);
+        if (combined == null) {
+          merged.put(key, dps.copy());
+        } else {
+          combined.merge(dps);
+          dictionary.release(dps.getSeries());
+        }
+      }
+    });
+    for (Map.Entry<SeriesKey, DataPoints> entry : merged.entrySet()) {
+      entry.getValue().close();
+      visitor.visit(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Writes the rollups of one series window to the sink, as its policy
+   * asks for them.
+   */
+  private void emit(final RollupTier tier, final SeriesKey key, final DataPoints dps) {
+    // strings only come back out of the dictionary at emit time
+    String metric = this.dictionary.getMetric(dps.getSeries());
+    HashMap<String, String> tags = this.dictionary.getTags(dps.getSeries());
+    RollupPolicy policy = this.policies == null ? RollupPolicy.DEFAULT
+            : this.policies.resolve(key, metric, tags).getPolicy();
+    if (!policy.emits(tier.getMinutes())) {
+      return;
+    }
+    for (String aggregate : policy.getAggregates()) {
+      double value = RollupPolicy.getValue(dps, aggregate, tier.getWindowSeconds());
+      if (!Double.isNaN(value)) {
+        this.sink.emit(metric + tier.getSuffix(aggregate), dps.getTimestamp(), value, tags);
+      }
+    }
+    for (int i = 0; policy.hasQuantiles() && i < this.quantiles.length; i++) {
+      this.sink.emit(metric + tier.getQuantileSuffix(i), dps.getTimestamp(),
+              dps.getQuantile(this.quantiles[i]), tags);
+    }
+  }
+
+  /**
+   * Writes a provisional rollup for every series that changed in an open
+   * window since the last firing. The final rollup written when the window
+   * closes overwrites it at the same timestamp.
+   */
+  void fireEarly() {
+    for (final RollupTier tier : this.tiers) {
+      for (RollupWindow window : tier.getWindows().values()) {
+        window.fire(new RollupWindow.Visitor() {
+          public void visit(final SeriesKey key, final DataPoints dps) {
+            if (dps.getCount() > 0) {
+              emit(tier, key, dps);
+            }
+          }
+        });
+      }
+    }
+  }
+
+  private void scheduleEarlyFiring(final long interval) {
+    this.earlyFiring = this.timer.newTimeout(new TimerTask() {
+      public void run(final Timeout timeout) {
+        try {
+          fireEarly();
+        } catch (RuntimeException e) {
+          LOG.error("Unable to fire rollup windows early", e);
+        }
+        if (!timeout.isCancelled()) {
+          scheduleEarlyFiring(interval);
+        }
+      }
+    }, interval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Merges a closed window's summary into the enclosing window of a coarser
+   * tier, so coarse tiers never see raw datapoints.
+   */
+  private void cascade(final RollupTier tier, final SeriesKey key, final DataPoints closed) {
+    merge(tier, floorTimestamp(closed.getTimestamp(), tier.getWindowSeconds()), key, closed.getSeries(), closed);
+  }
+
+  /**
+   * Merges a summary into the series' accumulator in the tier's window
+   * starting at ts, taking a new dictionary reference on the series if the
+   * accumulator has to be created.
+   */
+  private void merge(final RollupTier tier, final long ts, final SeriesKey key, final int[] series,
+                     final DataPoints closed) {
+    while (true) {
+      RollupWindow window = getWindow(tier, ts);
+      if (window == null) {
+        // the coarse window was evicted and has already been written
+        return;
+      }
+      if (this.maxSeries > 0) {
+        window.touch(System.currentTimeMillis() / 1000);
+      }
+      OffHeapSeriesTable table = window.getTable();
+      if (table == null) {
+        DataPoints dps = window.get(key);
+        if (dps == null) {
+          this.dictionary.retain(series);
+          dps = create(window, key, series);
+        }
+        if (dps != null && dps.merge(closed)) {
+          markDirty(window);
+          window.markUnsaved();
+          return;
+        }
+        continue;
+      }
+      this.dictionary.retain(series);
+      int result = table.merge(key, series, closed);
+      if (result != OffHeapSeriesTable.INSERTED) {
+        this.dictionary.release(series);
+      } else {
+        this.openSeries.incrementAndGet();
+      }
+      if (result == OffHeapSeriesTable.FULL) {
+        this.droppedCapacity.incrementAndGet();
+      }
+      if (result != OffHeapSeriesTable.CLOSED) {
+        markDirty(window);
+        window.markUnsaved();
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return the number of raw datapoints currently held in open windows
+   */
+  long getPendingCount() {
+    long count = 0;
+    for (RollupWindow window : this.tiers[0].getWindows().values()) {
+      count += window.getCount();
+    }
+    return count;
+  }
+
+  TagDictionary getDictionary() {
+    return this.dictionary;
+  }
+
+  /**
+   * @return the number of series windows currently open across all tiers
+   */
+  int getOpenSeriesCount() {
+    int count = 0;
+    for (RollupTier tier : this.tiers) {
+      for (RollupWindow window : tier.getWindows().values()) {
+        count += window.size();
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Flushes every window that has already ended, finest tier first so that
+   * each coarser tier has been fed before it is considered. Windows still in
+   * progress are checkpointed for the next start when checkpoints are
+   * enabled, and discarded rather than written as partial rollups otherwise.
+   */
+  private void storeRollups() {
+    long now = System.currentTimeMillis() / 1000;
+    for (RollupTier tier : this.tiers) {
+      if (tier.getWindows().size() == 0) {
+        LOG.debug("No " + tier.getMinutes() + "m windows to consider for rollup");
+        continue;
+      }
+      LOG.debug("Considering " + tier.getWindows().size() + " " + tier.getMinutes() + "m windows for rollup");
+      for (RollupWindow window : tier.getWindows().values()) {
+        if (window.getEnd() <= now) {
+          closeWindow(tier, window.getTimestamp());
+        } else if (this.checkpoint == null) {
+          LOG.info("Discarding open window " + window.getTimestamp() + " with " + window.size() + " series");
+          tier.getWindows().remove(window.getTimestamp());
+          close(window, new RollupWindow.Visitor() {
+            public void visit(final SeriesKey key, final DataPoints dps) {
+              openSeries.decrementAndGet();
+              dictionary.release(dps.getSeries());
+            }
+          });
+        }
+      }
+    }
+    if (this.checkpoint != null) {
+      writeCheckpoint();
     }
   }
-}
\ No newline at end of file
+}
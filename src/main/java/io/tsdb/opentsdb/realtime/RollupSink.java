@@ -0,0 +1,35 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.stumbleupon.async.Deferred;
+
+import java.util.Map;
+
+/**
+ * Destination for the aggregated points produced when a rollup window closes.
+ */
+interface RollupSink {
+  Deferred<Object> emit(String metric, long timestamp, double value, Map<String, String> tags);
+
+  /**
+   * Writes out anything the sink is still holding back.
+   */
+  default Deferred<Object> flush() {
+    return Deferred.fromResult(null);
+  }
+}
@@ -0,0 +1,147 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One rollup resolution. The finest tier is fed from raw datapoints and
+ * every coarser tier is fed from the closed windows of the tier below it.
+ */
+class RollupTier {
+  private final int minutes;
+  private final long windowSeconds;
+  private final String prefix;
+  private final String[] quantileSuffixes;
+  // every suffix this tier writes, aggregates and quantiles alike
+  private final String[] suffixes;
+  private final RollupTier next;
+  private final ConcurrentHashMap<Long, RollupWindow> windows;
+  // windows already closed, which must not be opened again while they can
+  // still receive late datapoints
+  private final Set<Long> retired = ConcurrentHashMap.newKeySet();
+
+  RollupTier(final int minutes, final String[] quantileLabels, final RollupTier next,
+             final int concurrency) {
+    this.minutes = minutes;
+    this.windowSeconds = minutes * 60L;
+    this.prefix = "." + Integer.toString(minutes) + "m-";
+    this.quantileSuffixes = new String[quantileLabels.length];
+    for (int i = 0; i < quantileLabels.length; i++) {
+      this.quantileSuffixes[i] = this.prefix + "p" + quantileLabels[i];
+    }
+    List<String> suffixes = new ArrayList<String>(Arrays.asList(this.quantileSuffixes));
+    for (String aggregate : RollupPolicy.AGGREGATES) {
+      suffixes.add(this.prefix + aggregate);
+    }
+    this.suffixes = suffixes.toArray(new String[suffixes.size()]);
+    this.next = next;
+    this.windows = new ConcurrentHashMap<Long, RollupWindow>(16, 0.75f, concurrency);
+  }
+
+  int getMinutes() {
+    return minutes;
+  }
+
+  long getWindowSeconds() {
+    return windowSeconds;
+  }
+
+  /**
+   * @return the suffix of an aggregate's metric, e.g. ".5m-avg"
+   */
+  String getSuffix(final String aggregate) {
+    return prefix + aggregate;
+  }
+
+  /**
+   * @return the suffix of the configured quantile's metric, e.g. ".5m-p95"
+   */
+  String getQuantileSuffix(final int index) {
+    return quantileSuffixes[index];
+  }
+
+  /**
+   * @return true if the metric name ends with one of this tier's suffixes,
+   * including quantiles with a dot of their own such as ".5m-p99.9"
+   */
+  boolean isRollup(final String metric) {
+    int start = metric.lastIndexOf(this.prefix);
+    if (start < 0) {
+      return false;
+    }
+    for (String suffix : this.suffixes) {
+      if (metric.length() - start == suffix.length() && metric.startsWith(suffix, start)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the next coarser tier, or null if this is the coarsest
+   */
+  RollupTier getNext() {
+    return next;
+  }
+
+  ConcurrentHashMap<Long, RollupWindow> getWindows() {
+    return windows;
+  }
+
+  /**
+   * Marks a window as closed, so its timestamp is never opened and emitted
+   * a second time while datapoints for it are still accepted.
+   */
+  void retire(final long ts) {
+    this.retired.add(ts);
+  }
+
+  boolean isRetired(final long ts) {
+    return this.retired.contains(ts);
+  }
+
+  /**
+   * Forgets closed windows that ended at or before the given time, once
+   * nothing can be merged into them any more.
+   */
+  void pruneRetired(final long before) {
+    Iterator<Long> retired = this.retired.iterator();
+    while (retired.hasNext()) {
+      if (retired.next() + this.windowSeconds <= before) {
+        retired.remove();
+      }
+    }
+  }
+
+  /**
+   * @return true if a window starting within [start, end) is still open
+   */
+  boolean hasOpenWindow(final long start, final long end) {
+    for (Long ts : this.windows.keySet()) {
+      if (ts >= start && ts < end) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,501 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import io.tsdb.opentsdb.core.DataPoints;
+import io.tsdb.opentsdb.core.OffHeapArena;
+import io.tsdb.opentsdb.core.SeriesKey;
+import org.jboss.netty.util.Timeout;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * All of the series accumulators that share one rollup window. The whole
+ * window is dropped at once when it closes, so closing never has to scan
+ * series belonging to other windows. Accumulators live either in a heap
+ * map of {@link DataPoints} or, when the publisher is given an
+ * {@link OffHeapArena}, in an {@link OffHeapSeriesTable}. Ingest threads can
+ * also keep {@link Partial} accumulators of their own in a window, which are
+ * only combined when it closes.
+ */
+class RollupWindow implements RollupCheckpoint.Gate {
+  private final long timestamp;
+  private final long end;
+  private final ConcurrentHashMap<SeriesKey, DataPoints> series;
+  private final OffHeapSeriesTable table;
+  private boolean closed = false;
+  private Timeout timeout;
+  private volatile long updated;
+  private volatile boolean dirty = false;
+  private volatile boolean unsaved = true;
+  private volatile boolean held = false;
+  private volatile Partial[] partials = new Partial[0];
+
+  /** The window closed before the accumulator could be added. */
+  static final int CLOSED = 0;
+  /** The series already had an accumulator in the window. */
+  static final int JOINED = 1;
+  /** The accumulator is the series' first in the window. */
+  static final int CREATED = 2;
+
+  /**
+   * The accumulators one ingest thread writes to in this window. Only the
+   * owning thread adds to them, and it takes no lock to do so: it flags
+   * that it is writing, and any other thread that reads the accumulators
+   * holds the partial first, which waits for a write in progress to end and
+   * keeps the owner out until released. The map itself may be read at any
+   * time.
+   */
+  static class Partial {
+    private final ConcurrentHashMap<SeriesKey, DataPoints> series = new ConcurrentHashMap<SeriesKey, DataPoints>();
+    private volatile boolean writing = false;
+    private volatile boolean held = false;
+    private volatile boolean closed = false;
+
+    DataPoints get(final SeriesKey key) {
+      return this.series.get(key);
+    }
+
+    /**
+     * Called by the owner before it adds to its accumulators, waiting out
+     * any reader that holds the partial.
+     * @return false if the partial has been closed
+     */
+    boolean enter() {
+      while (true) {
+        this.writing = true;
+        if (!this.held) {
+          return true;
+        }
+        this.writing = false;
+        if (this.closed) {
+          return false;
+        }
+        Thread.yield();
+      }
+    }
+
+    void exit() {
+      this.writing = false;
+    }
+
+    /**
+     * Must be called holding the partial's lock, which keeps readers apart.
+     */
+    private void hold() {
+      this.held = true;
+      while (this.writing) {
+        Thread.yield();
+      }
+    }
+
+    private void release() {
+      if (!this.closed) {
+        this.held = false;
+      }
+    }
+  }
+
+  /**
+   * Receives each series of a window as it is closed.
+   */
+  interface Visitor {
+    void visit(SeriesKey key, DataPoints dps);
+  }
+
+  RollupWindow(final long timestamp, final long end, final int concurrency, final OffHeapArena arena) {
+    this.timestamp = timestamp;
+    this.end = end;
+    this.updated = System.currentTimeMillis() / 1000;
+    if (arena == null) {
+      this.series = new ConcurrentHashMap<SeriesKey, DataPoints>(16, 0.75f, concurrency);
+      this.table = null;
+    } else {
+      this.series = null;
+      this.table = new OffHeapSeriesTable(arena, concurrency);
+    }
+  }
+
+  /**
+   * @return the off-heap table, or null if this window is kept on the heap
+   */
+  OffHeapSeriesTable getTable() {
+    return table;
+  }
+
+  long getTimestamp() {
+    return timestamp;
+  }
+
+  long getEnd() {
+    return end;
+  }
+
+  /**
+   * Records that the window was written to at the given wall-clock second.
+   * The field is only written once a second so writers do not contend on it.
+   */
+  void touch(final long seconds) {
+    if (this.updated != seconds) {
+      this.updated = seconds;
+    }
+  }
+
+  /**
+   * Records that the window changed since it was last fired early. Like
+   * {@link #touch}, the field is only written when it actually flips.
+   */
+  void markDirty() {
+    if (!this.dirty) {
+      this.dirty = true;
+    }
+  }
+
+  /**
+   * Records that the window changed since it was last checkpointed. A new
+   * window starts out unsaved.
+   */
+  void markUnsaved() {
+    if (!this.unsaved) {
+      this.unsaved = true;
+    }
+  }
+
+  boolean isUnsaved() {
+    return unsaved;
+  }
+
+  void clearUnsaved() {
+    this.unsaved = false;
+  }
+
+  /**
+   * Holds off writers while the window is copied for a checkpoint.
+   */
+  public void hold() {
+    this.held = true;
+  }
+
+  public synchronized void release() {
+    this.held = false;
+    notifyAll();
+  }
+
+  boolean isHeld() {
+    return held;
+  }
+
+  /**
+   * Waits until a copy of the window in progress is done.
+   */
+  synchronized void awaitRelease() {
+    while (this.held) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  long getUpdated() {
+    return updated;
+  }
+
+  void setTimeout(final Timeout timeout) {
+    this.timeout = timeout;
+  }
+
+  DataPoints get(final SeriesKey key) {
+    return this.series.get(key);
+  }
+
+  int getPartialCount() {
+    int count = 0;
+    for (Partial partial : this.partials) {
+      if (partial != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @param slot the calling thread's slot, which no other thread uses
+   * @return the thread's partial accumulators, or null if the window has
+   * closed
+   */
+  Partial getPartial(final int slot) {
+    Partial[] current = this.partials;
+    if (slot < current.length && current[slot] != null) {
+      return current[slot];
+    }
+    synchronized (this) {
+      if (this.closed) {
+        return null;
+      }
+      if (slot >= this.partials.length) {
+        this.partials = Arrays.copyOf(this.partials, Math.max(slot + 1, this.partials.length * 2));
+      }
+      if (this.partials[slot] == null) {
+        this.partials[slot] = new Partial();
+      }
+      return this.partials[slot];
+    }
+  }
+
+  /**
+   * Creates the accumulator for a series that is new to this window. This
+   * only happens once per series and window, so it shares the window lock
+   * with {@link #close()} to guarantee that every accumulator created before
+   * the close is seen by it.
+   * @return the accumulator now in the window for the key, which is not
+   * the given one if another thread got there first, or null if the window
+   * is already closed
+   */
+  synchronized DataPoints create(final SeriesKey key, final DataPoints created) {
+    if (this.closed) {
+      return null;
+    }
+    DataPoints dps = this.series.get(key);
+    if (dps == null) {
+      dps = created;
+      this.series.put(key, dps);
+    }
+    return dps;
+  }
+
+  /**
+   * Adds a new accumulator for a series to one thread's partial. Like
+   * {@link #create(SeriesKey, DataPoints)} this shares the window lock with
+   * {@link #close}, and only happens once per series and thread.
+   * @return {@link #CREATED} if no other thread has an accumulator for the
+   * series in this window yet, {@link #JOINED} if one has, or
+   * {@link #CLOSED} if the window is already closed
+   */
+  synchronized int create(final Partial partial, final SeriesKey key, final DataPoints created) {
+    if (this.closed) {
+      return CLOSED;
+    }
+    boolean joined = contains(key);
+    partial.series.put(key, created);
+    return joined ? JOINED : CREATED;
+  }
+
+  /**
+   * @return whether any thread has an accumulator for the series in this
+   * heap window
+   */
+  boolean contains(final SeriesKey key) {
+    if (this.series.containsKey(key)) {
+      return true;
+    }
+    for (Partial partial : this.partials) {
+      if (partial != null && partial.series.containsKey(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Closes the window and all of its accumulators and hands each of them to
+   * the visitor. A series written by several threads is visited once for
+   * each of their partial accumulators.
+   */
+  void close(final Visitor visitor) {
+    synchronized (this) {
+      this.closed = true;
+      if (this.timeout != null) {
+        this.timeout.cancel();
+      }
+    }
+    if (this.table != null) {
+      this.table.close(this.timestamp, visitor);
+      return;
+    }
+    for (DataPoints dps : this.series.values()) {
+      dps.close();
+    }
+    for (Map.Entry<SeriesKey, DataPoints> entry : this.series.entrySet()) {
+      visitor.visit(entry.getKey(), entry.getValue());
+    }
+    for (Partial partial : this.partials) {
+      if (partial == null) {
+        continue;
+      }
+      synchronized (partial) {
+        partial.hold();
+        partial.closed = true;
+      }
+      for (DataPoints dps : partial.series.values()) {
+        dps.close();
+      }
+      for (Map.Entry<SeriesKey, DataPoints> entry : partial.series.entrySet()) {
+        visitor.visit(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Hands a copy of every accumulator to the visitor while the window stays
+   * open. Holding the window lock keeps a concurrent {@link #close} from
+   * releasing the series' dictionary ids while the visitor reads them.
+   */
+  synchronized void forEach(final Visitor visitor) {
+    if (this.closed) {
+      return;
+    }
+    if (this.table != null) {
+      this.table.forEach(this.timestamp, visitor);
+      return;
+    }
+    for (Map.Entry<SeriesKey, DataPoints> entry : this.series.entrySet()) {
+      visitor.visit(entry.getKey(), entry.getValue().copy());
+    }
+    for (Partial partial : this.partials) {
+      if (partial == null) {
+        continue;
+      }
+      synchronized (partial) {
+        partial.hold();
+        try {
+          for (Map.Entry<SeriesKey, DataPoints> entry : partial.series.entrySet()) {
+            visitor.visit(entry.getKey(), entry.getValue().copy());
+          }
+        } finally {
+          partial.release();
+        }
+      }
+    }
+  }
+
+  /**
+   * Hands the visitor a provisional copy of every series that changed since
+   * the last firing, with the partials of each series combined. Off-heap
+   * records carry no change marker, so an off-heap window that changed at
+   * all is fired in full.
+   */
+  synchronized void fire(final Visitor visitor) {
+    if (this.closed || !this.dirty) {
+      return;
+    }
+    this.dirty = false;
+    if (this.table != null) {
+      this.table.forEach(this.timestamp, visitor);
+      return;
+    }
+    if (this.partials.length == 0) {
+      for (Map.Entry<SeriesKey, DataPoints> entry : this.series.entrySet()) {
+        DataPoints copy = entry.getValue().copyIfChanged();
+        if (copy != null) {
+          visitor.visit(entry.getKey(), copy);
+        }
+      }
+      return;
+    }
+    HashMap<SeriesKey, DataPoints> combined = new HashMap<SeriesKey, DataPoints>();
+    Set<SeriesKey> changed = new HashSet<SeriesKey>();
+    for (Map.Entry<SeriesKey, DataPoints> entry : this.series.entrySet()) {
+      combine(combined, changed, entry.getKey(), entry.getValue());
+    }
+    for (Partial partial : this.partials) {
+      if (partial == null) {
+        continue;
+      }
+      synchronized (partial) {
+        partial.hold();
+        try {
+          for (Map.Entry<SeriesKey, DataPoints> entry : partial.series.entrySet()) {
+            combine(combined, changed, entry.getKey(), entry.getValue());
+          }
+        } finally {
+          partial.release();
+        }
+      }
+    }
+    for (SeriesKey key : changed) {
+      visitor.visit(key, combined.get(key));
+    }
+  }
+
+  private static void combine(final Map<SeriesKey, DataPoints> combined, final Set<SeriesKey> changed,
+                              final SeriesKey key, final DataPoints dps) {
+    DataPoints copy = dps.copyIfChanged();
+    if (copy == null) {
+      copy = dps.copy();
+    } else {
+      changed.add(key);
+    }
+    DataPoints existing = combined.get(key);
+    if (existing == null) {
+      combined.put(key, copy);
+    } else {
+      existing.merge(copy);
+    }
+  }
+
+  int size() {
+    if (this.table != null) {
+      return this.table.size();
+    }
+    if (this.partials.length == 0) {
+      return this.series.size();
+    }
+    Set<SeriesKey> keys = new HashSet<SeriesKey>(this.series.keySet());
+    for (Partial partial : this.partials) {
+      if (partial != null) {
+        keys.addAll(partial.series.keySet());
+      }
+    }
+    return keys.size();
+  }
+
+  /**
+   * @return the number of datapoints summarized in this window
+   */
+  long getCount() {
+    if (this.table != null) {
+      return this.table.getCount();
+    }
+    long count = 0;
+    for (DataPoints dps : this.series.values()) {
+      count += dps.getCount();
+    }
+    for (Partial partial : this.partials) {
+      if (partial != null) {
+        synchronized (partial) {
+          partial.hold();
+          try {
+            for (DataPoints dps : partial.series.values()) {
+              count += dps.getCount();
+            }
+          } finally {
+            partial.release();
+          }
+        }
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,47 @@
+package io.tsdb.opentsdb.realtime;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.core.TSDB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+
+/**
+ * Writes rollups back into OpenTSDB one point at a time via {@link TSDB#addPoint}.
+ */
+class TsdbRollupSink implements RollupSink {
+  private static final Logger LOG = LoggerFactory.getLogger(TsdbRollupSink.class);
+  private final TSDB tsdb;
+
+  TsdbRollupSink(final TSDB tsdb) {
+    this.tsdb = tsdb;
+  }
+
+  public Deferred<Object> emit(final String metric, final long timestamp, final double value,
+                               final Map<String, String> tags) {
+    return this.tsdb.addPoint(metric, timestamp, value, tags).addErrback(new Callback<Object, Exception>() {
+      public Object call(final Exception e) {
+        LOG.error("Failed to store rollup " + metric + " " + timestamp + ": " + e);
+        return e;
+      }
+    });
+  }
+}
@@ -0,0 +1,75 @@
+package io.tsdb.opentsdb.authentication;
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The opentsdb Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class AuthenticationUtilTest {
+
+  private static String reference(String accessKey, String secret, String salt, String nonce) throws Exception {
+    Mac mac = Mac.getInstance(AuthenticationUtil.algo);
+    mac.init(new SecretKeySpec(secret.getBytes(), AuthenticationUtil.algo));
+    String salted = DatatypeConverter.printBase64Binary(mac.doFinal((accessKey + ":" + salt).getBytes("ASCII")));
+    MessageDigest md = MessageDigest.getInstance("SHA-256");
+    return DatatypeConverter.printBase64Binary(md.digest((salted + ":" + nonce).getBytes()));
+  }
+
+  private static Map<String, String> fields(String date, String nonce) {
+    Map<String, String> fields = new HashMap<String, String>();
+    fields.put("date", date);
+    fields.put("nonce", nonce);
+    return fields;
+  }
+
+  @Test
+  public void testCachedDigestsMatchFreshlyComputedOnes() throws Exception {
+    EmbeddedAccessKeyPair keyPair = new EmbeddedAccessKeyPair("collector", "secret1");
+    for (int i = 0; i < 3; i++) {
+      String nonce = "nonce" + i;
+      assertEquals(reference("collector", "secret1", "1450000000", nonce),
+              AuthenticationUtil.createDigest(keyPair, fields("1450000000", nonce)));
+    }
+  }
+
+  @Test
+  public void testChangedSecretIsNotServedFromCache() throws Exception {
+    AuthenticationUtil.createDigest(new EmbeddedAccessKeyPair("rotated", "old"), fields("1450000000", "a"));
+    assertEquals(reference("rotated", "new", "1450000000", "a"),
+            AuthenticationUtil.createDigest(new EmbeddedAccessKeyPair("rotated", "new"), fields("1450000000", "a")));
+    AuthenticationUtil.invalidate("rotated");
+    assertEquals(reference("rotated", "new", "1450000000", "b"),
+            AuthenticationUtil.createDigest(new EmbeddedAccessKeyPair("rotated", "new"), fields("1450000000", "b")));
+  }
+
+  @Test
+  public void testValidateCredentials() throws Exception {
+    assertTrue(AuthenticationUtil.validateCredentials("collector", "secret1", "collector", "secret1"));
+    assertFalse(AuthenticationUtil.validateCredentials("collector", "secret1", "collector", "secret2"));
+    assertFalse(AuthenticationUtil.validateCredentials("collector", "secret1", "collector", "secret"));
+    // an unknown access key has no secret to match
+    assertFalse(AuthenticationUtil.validateCredentials("collector", null, "collector", "secret1"));
+  }
+}
@@ -0,0 +1,82 @@
+package io.tsdb.opentsdb.authentication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The opentsdb Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class AuthorizationHeaderTest {
+
+  @Test
+  public void testParsesHttpHeader() throws Exception {
+    AuthorizationHeader header = AuthorizationHeader.parseHttp("opentsdb collector:ZGlnZXN0:1450000000:abc123");
+    assertEquals("collector", header.accessKey);
+    assertEquals("ZGlnZXN0", header.digest);
+    assertEquals("1450000000", header.date);
+    assertEquals("abc123", header.nonce);
+    assertEquals(1450000000000L, header.getTimestamp());
+  }
+
+  @Test
+  public void testParsesMillisecondAndRelativeDates() throws Exception {
+    assertEquals(1450000000123L, AuthorizationHeader.parse("k:d:1450000000123:n").getTimestamp());
+    long relative = AuthorizationHeader.parse("k:d:1m-ago:n").getTimestamp();
+    assertEquals(System.currentTimeMillis() - 60000, relative, 5000);
+  }
+
+  @Test
+  public void testParsesSessionHeader() throws Exception {
+    AuthorizationHeader header = AuthorizationHeader.parseHttp("OpenTSDB-Session collector:1450000000:dG9rZW4=");
+    assertTrue(header.isSession());
+    assertEquals("collector", header.accessKey);
+    assertEquals("1450000000", header.date);
+    assertEquals("dG9rZW4=", header.digest);
+    assertFalse(AuthorizationHeader.parseHttp("OpenTSDB collector:ZGln:1450000000:abc").isSession());
+  }
+
+  @Test
+  public void testIgnoresSpacesAfterTheScheme() throws Exception {
+    AuthorizationHeader header = AuthorizationHeader.parseHttp("OpenTSDB   collector:ZGln:1450000000:abc");
+    assertEquals("collector", header.accessKey);
+    assertEquals("abc", header.nonce);
+    header = AuthorizationHeader.parseHttp("OpenTSDB-Session  collector:1450000000:dG9rZW4=");
+    assertEquals("collector", header.accessKey);
+    assertEquals("dG9rZW4=", header.digest);
+  }
+
+  @Test
+  public void testStripsTrailingWhitespace() throws Exception {
+    assertEquals("abc", AuthorizationHeader.parseHttp("OpenTSDB collector:ZGln:1450000000:abc \t\r\n").nonce);
+    assertEquals("dG9rZW4=", AuthorizationHeader.parseHttp("OpenTSDB-Session collector:1450000000:dG9rZW4= ").digest);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsSpacesInsideTheCredential() throws Exception {
+    AuthorizationHeader.parseHttp("OpenTSDB collector:ZGln: 1450000000:abc");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsOtherSchemes() throws Exception {
+    AuthorizationHeader.parseHttp("Basic collector:digest:1450000000:abc");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsWrongFieldCount() throws Exception {
+    AuthorizationHeader.parseHttp("OpenTSDB collector:digest:1450000000");
+  }
+}
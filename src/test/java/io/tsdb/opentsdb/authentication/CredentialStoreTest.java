@@ -0,0 +1,151 @@
+package io.tsdb.opentsdb.authentication;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The opentsdb Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class CredentialStoreTest {
+  private static final int FILE_KEYS = 100000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File writeKeys(String name, int keys, String secretPrefix) throws Exception {
+    File file = folder.newFile(name);
+    try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+      writer.println("# generated");
+      for (int i = 0; i < keys; i++) {
+        writer.println("key" + i + " " + secretPrefix + i);
+      }
+    }
+    return file;
+  }
+
+  @Test
+  public void testReloadReplacesFileKeysAndKeepsStoredOnes() throws Exception {
+    CredentialStore store = new CredentialStore();
+    store.put("admin", "adminsecret");
+    assertEquals(FILE_KEYS, store.load(writeKeys("a", FILE_KEYS, "s")));
+    assertEquals("s42", store.get("key42"));
+    store.load(writeKeys("b", 10, "t"));
+    assertEquals("t4", store.get("key4"));
+    assertNull(store.get("key42"));
+    assertEquals("adminsecret", store.get("admin"));
+    assertEquals(11, store.size());
+  }
+
+  @Test
+  public void testReadersNeverSeeTornStateUnderConcurrentWrites() throws Exception {
+    final CredentialStore store = new CredentialStore();
+    store.put("stable", "secret");
+    final File a = writeKeys("a", FILE_KEYS, "a");
+    final File b = writeKeys("b", FILE_KEYS, "b");
+    store.load(a);
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    Future<?>[] readers = new Future<?>[2];
+    for (int r = 0; r < readers.length; r++) {
+      readers[r] = pool.submit(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          int i = 0;
+          while (running.get()) {
+            assertEquals("secret", store.get("stable"));
+            // every file key comes from one complete load or the other
+            String secret = store.get("key" + (i % FILE_KEYS));
+            assertTrue(secret.equals("a" + (i % FILE_KEYS)) || secret.equals("b" + (i % FILE_KEYS)));
+            i++;
+          }
+        }
+      });
+    }
+    Future<?> writer = pool.submit(new Runnable() {
+      public void run() {
+        try {
+          start.await();
+          for (int i = 0; i < 20; i++) {
+            store.put("churn" + (i % 10), "x" + i);
+            store.remove("churn" + ((i + 5) % 10));
+          }
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    });
+    Future<?> reloader = pool.submit(new Runnable() {
+      public void run() {
+        try {
+          start.await();
+          for (int i = 0; i < 6; i++) {
+            store.load(i % 2 == 0 ? b : a);
+          }
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    start.countDown();
+    writer.get(2, TimeUnit.MINUTES);
+    reloader.get(2, TimeUnit.MINUTES);
+    running.set(false);
+    for (Future<?> reader : readers) {
+      reader.get(1, TimeUnit.MINUTES);
+    }
+    pool.shutdown();
+    assertEquals("secret", store.get("stable"));
+    assertEquals("a7", store.get("key7"));
+  }
+
+  @Test
+  public void testWatchPicksUpChangedFile() throws Exception {
+    CredentialStore store = new CredentialStore();
+    File file = writeKeys("watched", 3, "old");
+    store.watch(file, 1);
+    try {
+      assertEquals("old1", store.get("key1"));
+      try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+        writer.println("key1 rotated1");
+      }
+      long deadline = System.currentTimeMillis() + 10000;
+      while (!"rotated1".equals(store.get("key1")) && System.currentTimeMillis() < deadline) {
+        Thread.sleep(50);
+      }
+      assertEquals("rotated1", store.get("key1"));
+      assertNull(store.get("key2"));
+    } finally {
+      store.stop();
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package io.tsdb.opentsdb.authentication;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The opentsdb Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class NonceCacheTest {
+  private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+  @Test
+  public void testRejectsReplays() throws Exception {
+    NonceCache cache = new NonceCache(20 * MINUTE, MINUTE, 1000);
+    long now = System.currentTimeMillis();
+    assertTrue(cache.add("collector", "abc", now));
+    assertFalse(cache.add("collector", "abc", now));
+    // nonces belong to an access key
+    assertTrue(cache.add("other", "abc", now));
+    assertTrue(cache.add("collector", "def", now));
+    assertEquals(1, cache.getReplayed());
+    assertEquals(3, cache.size());
+  }
+
+  @Test
+  public void testExpiredBucketsAreDroppedWhole() throws Exception {
+    NonceCache cache = new NonceCache(20 * MINUTE, MINUTE, 1000);
+    long start = 1450000000000L;
+    for (int i = 0; i < 10; i++) {
+      assertTrue(cache.add("collector", "n" + i, start));
+    }
+    // a date a full wheel later reuses the slot and forgets the old nonces
+    assertTrue(cache.add("collector", "late", start + 42 * MINUTE));
+    assertEquals(1, cache.size());
+    // and anything from the dropped bucket can no longer be checked
+    assertFalse(cache.add("collector", "n0", start));
+    assertEquals(1, cache.getRefused());
+  }
+
+  @Test
+  public void testRefusesBeyondCapacity() throws Exception {
+    NonceCache cache = new NonceCache(20 * MINUTE, MINUTE, 42 * 2);
+    long now = System.currentTimeMillis();
+    // the current bucket is not limited to a share of the capacity
+    for (int i = 0; i < 42 * 2; i++) {
+      assertTrue(cache.add("collector", "n" + i, now));
+    }
+    assertFalse(cache.add("collector", "full", now));
+    assertFalse(cache.add("collector", "full", now - MINUTE));
+    assertEquals(2, cache.getRefused());
+    assertEquals(42 * 2, cache.size());
+    // dropping the bucket gives its capacity back
+    assertTrue(cache.add("collector", "later", now + 42 * MINUTE));
+    assertEquals(1, cache.size());
+  }
+}
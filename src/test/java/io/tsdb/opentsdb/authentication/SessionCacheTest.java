@@ -0,0 +1,85 @@
+package io.tsdb.opentsdb.authentication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The opentsdb Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class SessionCacheTest {
+
+  @Test
+  public void testTokensOnlyWorkOnceOpened() throws Exception {
+    SessionCache sessions = new SessionCache(60000, 100);
+    String token = AuthenticationUtil.createSessionToken("collector", "secret", "1450000000");
+    long now = 1450000000000L;
+    assertFalse(sessions.verify("collector", "1450000000", token, "secret", now));
+    sessions.open("collector", "secret", "1450000000", now);
+    assertTrue(sessions.verify("collector", "1450000000", token, "secret", now + 1000));
+    assertFalse(sessions.verify("collector", "1450000000", token.substring(1) + "A", "secret", now));
+    assertFalse(sessions.verify("other", "1450000000", token, "secret", now));
+    // expired
+    assertFalse(sessions.verify("collector", "1450000000", token, "secret", now + 60000));
+    assertEquals(1, sessions.getOpened());
+    assertEquals(1, sessions.getAccepted());
+  }
+
+  @Test
+  public void testChangedOrRemovedCredentialsCloseSessions() throws Exception {
+    SessionCache sessions = new SessionCache(60000, 100);
+    String token = AuthenticationUtil.createSessionToken("collector", "secret", "1450000000");
+    long now = 1450000000000L;
+    sessions.open("collector", "secret", "1450000000", now);
+    assertFalse(sessions.verify("collector", "1450000000", token, "rotated", now));
+    assertFalse(sessions.verify("collector", "1450000000", token, null, now));
+    sessions.revoke("collector");
+    assertEquals(0, sessions.size());
+    assertFalse(sessions.verify("collector", "1450000000", token, "secret", now));
+  }
+
+  @Test
+  public void testExpiredSessionsMakeRoomWhenFull() throws Exception {
+    SessionCache sessions = new SessionCache(1000, 2);
+    long now = 1450000000000L;
+    sessions.open("a", "s", "1", now);
+    sessions.open("b", "s", "1", now + 5);
+    // full of live sessions, so the oldest one is closed
+    sessions.open("c", "s", "1", now + 10);
+    assertEquals(2, sessions.size());
+    assertFalse(sessions.verify("a", "1", AuthenticationUtil.createSessionToken("a", "s", "1"), "s", now + 10));
+    assertTrue(sessions.verify("b", "1", AuthenticationUtil.createSessionToken("b", "s", "1"), "s", now + 10));
+    sessions.open("d", "s", "1", now + 2000);
+    assertEquals(1, sessions.size());
+    assertTrue(sessions.verify("d", "1", AuthenticationUtil.createSessionToken("d", "s", "1"), "s", now + 2000));
+  }
+
+  @Test
+  public void testRevokeOnlyClosesSessionsOfTheAccessKey() throws Exception {
+    SessionCache sessions = new SessionCache(60000, 100);
+    long now = 1450000000000L;
+    sessions.open("a", "s", "1", now);
+    sessions.open("a", "s", "2", now);
+    sessions.open("b", "s", "1", now);
+    sessions.revoke("a");
+    assertEquals(1, sessions.size());
+    assertTrue(sessions.verify("b", "1", AuthenticationUtil.createSessionToken("b", "s", "1"), "s", now));
+    // a session opened again after the revoke works
+    sessions.open("a", "s", "1", now + 10);
+    assertTrue(sessions.verify("a", "1", AuthenticationUtil.createSessionToken("a", "s", "1"), "s", now + 10));
+    assertEquals(2, sessions.size());
+  }
+}
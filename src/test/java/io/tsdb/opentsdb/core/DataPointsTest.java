@@ -0,0 +1,99 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class DataPointsTest {
+
+  @Test
+  public void testAccumulates() throws Exception {
+    DataPoints dps = new DataPoints(new int[] { 0 }, 1000L);
+    assertTrue(dps.addDatapoint(4L));
+    assertTrue(dps.addDatapoint(1.5d));
+    assertTrue(dps.addDatapoint(8L));
+    assertEquals(3, dps.getCount());
+    assertEquals(13.5d, dps.getSum(), 0d);
+    assertEquals(1.5d, dps.getMin(), 0d);
+    assertEquals(8d, dps.getMax(), 0d);
+    assertEquals(8d, dps.getLast(), 0d);
+    assertEquals(4.5d, dps.getAvg(), 0d);
+  }
+
+  @Test
+  public void testClosedWindowRejectsPoints() throws Exception {
+    DataPoints dps = new DataPoints(new int[] { 0 }, 1000L);
+    assertTrue(dps.addDatapoint(1L));
+    dps.close();
+    assertFalse(dps.addDatapoint(2L));
+    assertEquals(1, dps.getCount());
+  }
+
+  @Test
+  public void testCounterRateHandlesResetsAndWraparound() throws Exception {
+    DataPoints dps = new DataPoints(null, 0);
+    assertTrue(dps.addCounter(0, 100, 0, 0));
+    assertTrue(Double.isNaN(dps.getRate()));
+    dps.addCounter(10000, 200, 0, 0);
+    // a restart counts up from zero again
+    dps.addCounter(20000, 50, 0, 0);
+    dps.addCounter(30000, 150, 0, 0);
+    assertEquals(250d / 30, dps.getRate(), 1e-9);
+
+    DataPoints wrapping = new DataPoints(null, 0);
+    wrapping.addCounter(0, 250, 256, 0);
+    wrapping.addCounter(1000, 10, 256, 0);
+    assertEquals(16d, wrapping.getRate(), 1e-9);
+    // a wrap implying more than the reset value per second is a reset
+    wrapping.addCounter(2000, 5, 256, 100);
+    assertEquals(21d / 2, wrapping.getRate(), 1e-9);
+  }
+
+  @Test
+  public void testCounterMergeIncludesTheGapBetweenWindows() throws Exception {
+    DataPoints first = new DataPoints(null, 0);
+    first.addCounter(0, 0, 0, 0);
+    first.addCounter(50000, 50, 0, 0);
+    DataPoints second = new DataPoints(null, 60);
+    second.addCounter(60000, 60, 0, 0);
+    second.addCounter(110000, 110, 0, 0);
+
+    DataPoints merged = new DataPoints(null, 0);
+    assertTrue(merged.merge(first));
+    assertTrue(merged.merge(second));
+    assertEquals(110d, merged.getIncrease(), 0d);
+    assertEquals(1d, merged.getRate(), 1e-9);
+    assertEquals(merged.getRate(), merged.copy().getRate(), 0d);
+  }
+
+  @Test
+  public void testCounterMergeOfOverlappingWindowsDoesNotAddUpIncreases() throws Exception {
+    // one counter whose readings were split between two threads
+    DataPoints even = new DataPoints(null, 0);
+    DataPoints odd = new DataPoints(null, 0);
+    for (int i = 0; i <= 10; i++) {
+      (i % 2 == 0 ? even : odd).addCounter(i * 10000L, i * 10, 0, 0);
+    }
+    DataPoints merged = new DataPoints(null, 0);
+    assertTrue(merged.merge(odd));
+    assertTrue(merged.merge(even));
+    assertEquals(100d, merged.getIncrease(), 0d);
+    assertEquals(1d, merged.getRate(), 1e-9);
+  }
+}
@@ -0,0 +1,81 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class GorillaStreamTest {
+
+  @Test
+  public void testRoundTripsArbitraryPoints() throws Exception {
+    Random random = new Random(42);
+    long[] timestamps = new long[5000];
+    double[] values = new double[timestamps.length];
+    GorillaStream stream = new GorillaStream();
+    long timestamp = 1450000000000L;
+    for (int i = 0; i < timestamps.length; i++) {
+      // mostly regular, with jitter, gaps and the odd out of order point
+      timestamp += random.nextInt(10) == 0 ? random.nextInt(100000000) - 2000 : 10000 + random.nextInt(3);
+      timestamps[i] = timestamp;
+      values[i] = random.nextInt(4) == 0 ? random.nextGaussian() * 1e6 : Math.floor(random.nextDouble() * 100);
+      stream.append(timestamps[i], values[i]);
+    }
+    assertEquals(timestamps.length, stream.getCount());
+    GorillaStream.Decoder decoder = stream.decoder();
+    for (int i = 0; i < timestamps.length; i++) {
+      assertTrue(decoder.next());
+      assertEquals(timestamps[i], decoder.getTimestamp());
+      assertEquals(values[i], decoder.getValue(), 0d);
+    }
+    assertFalse(decoder.next());
+  }
+
+  @Test
+  public void testRegularSeriesCompressTightly() throws Exception {
+    GorillaStream stream = new GorillaStream();
+    for (int i = 0; i < 3600; i++) {
+      stream.append(1450000000000L + i * 10000L, 40 + (i / 60) % 3);
+    }
+    assertTrue("took " + stream.getBytes() + " bytes", stream.getBytes() < 3600 * 2);
+  }
+
+  @Test
+  public void testSerializedStreamKeepsAppending() throws Exception {
+    GorillaStream stream = new GorillaStream();
+    for (int i = 0; i < 100; i++) {
+      stream.append(i * 1000L, i * 0.5);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(stream.serializedSize());
+    stream.serialize(buffer);
+    assertEquals(0, buffer.remaining());
+    buffer.flip();
+    GorillaStream restored = GorillaStream.deserialize(buffer);
+    for (int i = 100; i < 200; i++) {
+      restored.append(i * 1000L, i * 0.5);
+    }
+    double[] values = restored.getValues();
+    assertEquals(200, values.length);
+    for (int i = 0; i < 200; i++) {
+      assertEquals(i * 0.5, values[i], 0d);
+    }
+  }
+}
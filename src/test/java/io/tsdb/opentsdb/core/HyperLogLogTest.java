@@ -0,0 +1,69 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class HyperLogLogTest {
+
+  @Test
+  public void testEstimatesDistinctSeries() throws Exception {
+    HyperLogLog sketch = new HyperLogLog();
+    for (int repeat = 0; repeat < 3; repeat++) {
+      for (int i = 0; i < 100000; i++) {
+        Map<String, String> tags = new HashMap<String, String>();
+        tags.put("host", "web" + i);
+        sketch.offer(SeriesKey.of("sys.cpu.user", tags).getHi());
+      }
+    }
+    // the standard error at the default precision is about 3%
+    assertEquals(100000, sketch.estimate(), 10000);
+  }
+
+  @Test
+  public void testSmallCardinalitiesAreNearlyExact() throws Exception {
+    HyperLogLog sketch = new HyperLogLog();
+    for (int i = 0; i < 50; i++) {
+      Map<String, String> tags = new HashMap<String, String>();
+      tags.put("host", "web" + i);
+      sketch.offer(SeriesKey.of("sys.cpu.user", tags).getHi());
+    }
+    assertEquals(50, sketch.estimate(), 2);
+  }
+
+  @Test
+  public void testMergeIsUnion() throws Exception {
+    HyperLogLog a = new HyperLogLog();
+    HyperLogLog b = new HyperLogLog();
+    for (long i = 0; i < 2000; i++) {
+      long hash = SeriesKey.of("m" + i, new HashMap<String, String>()).getHi();
+      a.offer(hash);
+      if (i >= 1000) {
+        b.offer(hash);
+      }
+    }
+    long before = a.estimate();
+    a.merge(b);
+    assertEquals(before, a.estimate());
+    assertEquals(2000, a.estimate(), 200);
+  }
+}
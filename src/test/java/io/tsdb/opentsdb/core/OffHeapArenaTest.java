@@ -0,0 +1,42 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class OffHeapArenaTest {
+
+  @Test
+  public void testPooledSlabsMakeRoomForOtherSizes() throws Exception {
+    OffHeapArena arena = new OffHeapArena(4096);
+    ByteBuffer small = arena.allocate(2048);
+    assertNotNull(small);
+    assertNull(arena.allocate(4096));
+    arena.free(small);
+    assertEquals(2048, arena.getReservedBytes());
+
+    // the pooled slab is freed, not just forgotten, to make room
+    ByteBuffer large = arena.allocate(4096);
+    assertNotNull(large);
+    assertEquals(4096, large.capacity());
+    assertEquals(4096, arena.getReservedBytes());
+  }
+}
@@ -0,0 +1,72 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class QuantileSketchTest {
+
+  @Test
+  public void testQuantilesWithinRelativeAccuracy() throws Exception {
+    QuantileSketch sketch = new QuantileSketch();
+    for (int i = 1; i <= 100000; i++) {
+      sketch.add(i);
+    }
+    assertEquals(100000, sketch.getCount());
+    assertEquals(50000, sketch.getQuantile(0.5), 50000 * 0.01);
+    assertEquals(95000, sketch.getQuantile(0.95), 95000 * 0.01);
+    assertEquals(99000, sketch.getQuantile(0.99), 99000 * 0.01);
+  }
+
+  @Test
+  public void testMergeMatchesSingleSketch() throws Exception {
+    QuantileSketch all = new QuantileSketch();
+    QuantileSketch low = new QuantileSketch();
+    QuantileSketch high = new QuantileSketch();
+    for (int i = -500; i <= 5000; i++) {
+      all.add(i * 0.25);
+      if (i < 1000) {
+        low.add(i * 0.25);
+      } else {
+        high.add(i * 0.25);
+      }
+    }
+    low.merge(high);
+    assertEquals(all.getCount(), low.getCount());
+    for (double q : new double[] { 0, 0.1, 0.5, 0.9, 0.99, 1 }) {
+      assertEquals(all.getQuantile(q), low.getQuantile(q), 0d);
+    }
+    assertTrue(low.getQuantile(0) < 0);
+  }
+
+  @Test
+  public void testCollapsesPastMaxBins() throws Exception {
+    QuantileSketch sketch = new QuantileSketch(0.01, 64);
+    for (int i = 0; i < 10000; i++) {
+      sketch.add(Math.pow(1.1, i % 200));
+    }
+    double max = Math.pow(1.1, 199);
+    assertEquals(max, sketch.getQuantile(1), max * 0.01);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeRejectsDifferentAccuracy() throws Exception {
+    new QuantileSketch(0.01, 64).merge(new QuantileSketch(0.02, 64));
+  }
+}
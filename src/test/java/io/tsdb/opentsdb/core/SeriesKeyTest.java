@@ -0,0 +1,58 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class SeriesKeyTest {
+
+  @Test
+  public void testTagOrderDoesNotMatter() throws Exception {
+    Map<String, String> forward = new LinkedHashMap<String, String>();
+    Map<String, String> reverse = new LinkedHashMap<String, String>();
+    for (int i = 0; i < 12; i++) {
+      forward.put("tag" + i, "value" + i);
+    }
+    for (int i = 11; i >= 0; i--) {
+      reverse.put("tag" + i, "value" + i);
+    }
+    assertEquals(SeriesKey.of("sys.cpu.user", forward), SeriesKey.of("sys.cpu.user", reverse));
+    assertEquals(SeriesKey.of("sys.cpu.user", forward).hashCode(),
+            SeriesKey.of("sys.cpu.user", reverse).hashCode());
+  }
+
+  @Test
+  public void testDistinguishesSeries() throws Exception {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    SeriesKey key = SeriesKey.of("sys.cpu.user", tags);
+    assertNotEquals(key, SeriesKey.of("sys.cpu.system", tags));
+    tags.put("host", "web02");
+    assertNotEquals(key, SeriesKey.of("sys.cpu.user", tags));
+    // moving characters between the key and value must not collide
+    Map<String, String> shifted = new HashMap<String, String>();
+    shifted.put("hos", "tweb01");
+    tags.put("host", "web01");
+    assertNotEquals(SeriesKey.of("sys.cpu.user", tags), SeriesKey.of("sys.cpu.user", shifted));
+  }
+}
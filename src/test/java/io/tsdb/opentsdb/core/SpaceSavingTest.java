@@ -0,0 +1,69 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class SpaceSavingTest {
+
+  @Test
+  public void testFindsFrequentItemsInNoisyStream() throws Exception {
+    Random random = new Random(42);
+    SpaceSaving summary = new SpaceSaving(20);
+    for (int i = 0; i < 100000; i++) {
+      int roll = random.nextInt(100);
+      if (roll < 20) {
+        summary.offer("hot", 1);
+      } else if (roll < 30) {
+        summary.offer("warm", 1);
+      } else {
+        // a long tail of items, each far rarer than the summary capacity allows
+        summary.offer("tail" + random.nextInt(10000), 1);
+      }
+    }
+    List<Map.Entry<String, Long>> top = summary.top(2);
+    assertEquals("hot", top.get(0).getKey());
+    assertEquals("warm", top.get(1).getKey());
+    // counts are never underestimated and overestimated by at most the error
+    assertTrue(top.get(0).getValue() >= 19000);
+    assertTrue(top.get(0).getValue() - summary.getError("hot") <= 21000);
+    assertEquals(100000, summary.getTotal());
+    assertEquals(20, summary.size());
+  }
+
+  @Test
+  public void testMergeAddsCounts() throws Exception {
+    SpaceSaving a = new SpaceSaving(4);
+    SpaceSaving b = new SpaceSaving(4);
+    a.offer("x", 5);
+    a.offer("y", 2);
+    b.offer("x", 3);
+    b.offer("z", 4);
+    a.merge(b);
+    List<Map.Entry<String, Long>> top = a.top(3);
+    assertEquals("x", top.get(0).getKey());
+    assertEquals(8L, (long) top.get(0).getValue());
+    assertEquals("z", top.get(1).getKey());
+    assertEquals(14, a.getTotal());
+  }
+}
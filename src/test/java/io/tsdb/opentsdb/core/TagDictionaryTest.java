@@ -0,0 +1,96 @@
+package io.tsdb.opentsdb.core;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class TagDictionaryTest {
+
+  @Test
+  public void testEncodeSharesIdsAndDecodes() throws Exception {
+    TagDictionary dictionary = new TagDictionary();
+    Map<String, String> web01 = new HashMap<String, String>();
+    web01.put("host", "web01");
+    web01.put("dc", "lga");
+    Map<String, String> web02 = new HashMap<String, String>(web01);
+    web02.put("host", "web02");
+
+    int[] first = dictionary.encode("sys.cpu.user", web01);
+    int[] second = dictionary.encode("sys.cpu.user", web02);
+    // metric, host, dc and lga are shared, only the host values differ
+    assertEquals(6, dictionary.size());
+    assertEquals(first[0], second[0]);
+    assertEquals("sys.cpu.user", dictionary.getMetric(second));
+    assertEquals(web02, dictionary.getTags(second));
+  }
+
+  @Test
+  public void testReleaseEvictsUnusedStrings() throws Exception {
+    TagDictionary dictionary = new TagDictionary();
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    int[] series = dictionary.encode("sys.cpu.user", tags);
+    dictionary.retain(series);
+    dictionary.release(series);
+    assertEquals(3, dictionary.size());
+    dictionary.release(series);
+    assertEquals(0, dictionary.size());
+
+    tags.put("host", "web02");
+    int[] reused = dictionary.encode("sys.cpu.system", tags);
+    assertEquals(3, dictionary.size());
+    assertEquals(tags, dictionary.getTags(reused));
+  }
+
+  @Test
+  public void testConcurrentEncodeAndReleaseKeepCounts() throws Exception {
+    final TagDictionary dictionary = new TagDictionary();
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    Future<?>[] results = new Future<?>[4];
+    for (int t = 0; t < results.length; t++) {
+      results[t] = pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          Map<String, String> tags = new HashMap<String, String>();
+          for (int i = 0; i < 20000; i++) {
+            // few enough hosts that strings are evicted and added back
+            tags.put("host", "web" + (i % 4));
+            int[] series = dictionary.encode("sys.cpu.user", tags);
+            assertEquals("sys.cpu.user", dictionary.getMetric(series));
+            assertEquals(tags, dictionary.getTags(series));
+            dictionary.release(series);
+          }
+        }
+      });
+    }
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+    for (Future<?> result : results) {
+      result.get();
+    }
+    assertEquals(0, dictionary.size());
+  }
+}
@@ -0,0 +1,154 @@
+package io.tsdb.opentsdb.realtime;
+
+import com.stumbleupon.async.Deferred;
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class HBaseRollupSinkTest {
+
+  private HashedWheelTimer timer;
+  private final List<PutRequest> puts = new ArrayList<PutRequest>();
+  private final List<Deferred<Object>> results = new ArrayList<Deferred<Object>>();
+
+  @Before
+  public void setup() {
+    timer = new HashedWheelTimer();
+  }
+
+  @After
+  public void teardown() {
+    timer.stop();
+  }
+
+  private HBaseRollupSink newSink(final int batchRows, final int maxInFlight, final long jitter) {
+    return new HBaseRollupSink(null, null, "tsdb".getBytes(StandardCharsets.UTF_8), timer,
+            batchRows, maxInFlight, jitter) {
+      @Override
+      Deferred<byte[]> rowKey(final String metric, final long baseTime, final Map<String, String> tags) {
+        return Deferred.fromResult((metric + baseTime + tags).getBytes(StandardCharsets.UTF_8));
+      }
+
+      @Override
+      Deferred<Object> put(final PutRequest put) {
+        Deferred<Object> result = new Deferred<Object>();
+        synchronized (puts) {
+          puts.add(put);
+          results.add(result);
+        }
+        return result;
+      }
+    };
+  }
+
+  @Test
+  public void testGroupsPointsOfARowIntoOnePut() throws Exception {
+    HBaseRollupSink sink = newSink(100, 4, 0);
+    long hour = 1450000800;
+    for (int minute = 0; minute < 60; minute++) {
+      for (String host : new String[] { "web01", "web02" }) {
+        sink.emit("sys.cpu.user-1m-avg", hour + minute * 60, minute, Collections.singletonMap("host", host));
+      }
+    }
+    // the next hour is a different row
+    sink.emit("sys.cpu.user-1m-avg", hour + 3600, 1, Collections.singletonMap("host", "web01"));
+    // fired again for the same minute, replacing the earlier value
+    Deferred<Object> replaced = sink.emit("sys.cpu.user-1m-avg", hour, 42,
+            Collections.singletonMap("host", "web01"));
+    Deferred<Object> flushed = sink.flush();
+    assertEquals(3, puts.size());
+    int cells = 0;
+    for (PutRequest put : puts) {
+      cells += put.qualifiers().length;
+      if (put.qualifiers().length == 60 && new String(put.key(), StandardCharsets.UTF_8).contains("web01")) {
+        assertEquals(42d, Double.longBitsToDouble(Bytes.getLong(put.values()[0])), 0d);
+      }
+    }
+    assertEquals(121, cells);
+    for (Deferred<Object> result : results) {
+      result.callback(null);
+    }
+    flushed.join(1000);
+    replaced.join(1000);
+  }
+
+  @Test
+  public void testBoundsBatchesInFlight() throws Exception {
+    HBaseRollupSink sink = newSink(2, 2, 0);
+    for (int i = 0; i < 10; i++) {
+      sink.emit("sys.cpu.user-1m-avg", 1450000800, i, Collections.singletonMap("host", "web" + i));
+    }
+    Deferred<Object> flushed = sink.flush();
+    assertEquals(2, sink.getInFlight());
+    assertEquals(3, sink.getQueued());
+    assertEquals(4, puts.size());
+    results.get(0).callback(null);
+    results.get(1).callback(null);
+    assertEquals(2, sink.getInFlight());
+    assertEquals(2, sink.getQueued());
+    assertEquals(6, puts.size());
+    for (int i = 2; i < 10; i++) {
+      results.get(i).callback(null);
+    }
+    flushed.join(1000);
+    assertEquals(0, sink.getInFlight());
+    assertEquals(10, puts.size());
+  }
+
+  @Test
+  public void testFlushesOnItsOwnWithinTheJitter() throws Exception {
+    HBaseRollupSink sink = newSink(100, 4, 200);
+    sink.emit("sys.cpu.user-1m-avg", 1450000800, 1, Collections.singletonMap("host", "web01"));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (puts.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, puts.size());
+  }
+
+  @Test
+  public void testPacesBatchesOverTheJitter() throws Exception {
+    HBaseRollupSink sink = newSink(1, 4, 1000);
+    for (int i = 0; i < 4; i++) {
+      sink.emit("sys.cpu.user-1m-avg", 1450000800, i, Collections.singletonMap("host", "web" + i));
+    }
+    long deadline = System.currentTimeMillis() + 5000;
+    while (puts.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    // the other batches follow a quarter of the jitter apart
+    assertEquals(1, puts.size());
+    deadline = System.currentTimeMillis() + 5000;
+    while (puts.size() < 4 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(4, puts.size());
+  }
+}
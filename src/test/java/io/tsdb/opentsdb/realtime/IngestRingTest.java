@@ -0,0 +1,129 @@
+package io.tsdb.opentsdb.realtime;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class IngestRingTest {
+
+  private final List<Long> handled = Collections.synchronizedList(new ArrayList<Long>());
+  private final IngestRing.Handler handler = new IngestRing.Handler() {
+    @Override
+    public void handle(String metric, long timestamp, double value, Map<String, String> tags) {
+      handled.add(timestamp);
+    }
+  };
+
+  @Test
+  public void testFullRingDropsAndDrainsInOrder() throws Exception {
+    IngestRing ring = new IngestRing(4, IngestRing.WaitStrategy.PARK, true, handler);
+    for (long i = 0; i < 6; i++) {
+      assertEquals(i < 4, ring.publish("sys.cpu.user", i, 1d, null));
+    }
+    assertEquals(4, ring.getDepth());
+    assertEquals(2, ring.getDropped());
+
+    ring.stop();
+    Thread consumer = new Thread(ring);
+    consumer.start();
+    consumer.join();
+    assertEquals(0, ring.getDepth());
+    assertEquals(4, handled.size());
+    for (int i = 0; i < 4; i++) {
+      assertEquals(i, (long) handled.get(i));
+    }
+  }
+
+  @Test
+  public void testFullRingBlocksUntilDrained() throws Exception {
+    final IngestRing ring = new IngestRing(2, IngestRing.WaitStrategy.YIELD, false, handler);
+    Thread producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (long i = 0; i < 1000; i++) {
+          ring.publish("sys.cpu.user", i, 1d, null);
+        }
+      }
+    });
+    producer.start();
+    Thread consumer = new Thread(ring);
+    consumer.start();
+    producer.join();
+    ring.stop();
+    consumer.join();
+    assertEquals(1000, handled.size());
+    assertEquals(0, ring.getDropped());
+  }
+
+  @Test
+  public void testStoppedRingRejectsDatapoints() throws Exception {
+    IngestRing ring = new IngestRing(4, IngestRing.WaitStrategy.PARK, false, handler);
+    assertTrue(ring.publish("sys.cpu.user", 0, 1d, null));
+    ring.stop();
+    assertFalse(ring.publish("sys.cpu.user", 1, 1d, null));
+    assertEquals(1, ring.getDropped());
+    Thread consumer = new Thread(ring);
+    consumer.start();
+    consumer.join();
+    assertEquals(1, handled.size());
+    assertEquals(0, ring.getDepth());
+  }
+
+  @Test
+  public void testEveryAcceptedDatapointIsHandledAcrossAStop() throws Exception {
+    final IngestRing ring = new IngestRing(1024, IngestRing.WaitStrategy.YIELD, false, handler);
+    final AtomicLong accepted = new AtomicLong(0);
+    List<Thread> producers = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      Thread producer = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (long i = 0; i < 100000; i++) {
+            if (ring.publish("sys.cpu.user", i, 1d, null)) {
+              accepted.incrementAndGet();
+            }
+          }
+        }
+      });
+      producers.add(producer);
+      producer.start();
+    }
+    Thread consumer = new Thread(ring);
+    consumer.start();
+    Thread.sleep(10);
+    ring.stop();
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    consumer.join();
+    assertEquals(accepted.get(), handled.size());
+    assertEquals(400000, accepted.get() + ring.getDropped());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSizeMustBeAPowerOfTwo() {
+    new IngestRing(1000, IngestRing.WaitStrategy.PARK, false, handler);
+  }
+}
@@ -0,0 +1,103 @@
+package io.tsdb.opentsdb.realtime;
+
+import io.tsdb.opentsdb.core.SeriesKey;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class PolicyMatcherTest {
+
+  private PolicyMatcher matcher;
+
+  @Before
+  public void setup() {
+    String[] lines = new String[] {
+      "sys.cpu.user aggregates=max where=dc=lax",
+      "sys.cpu.* aggregates=avg,sum drop=host",
+      "/sys\\.mem\\..*/ aggregates=min windows=60",
+      "sys.* aggregates=none",
+    };
+    List<RollupPolicy> policies = new ArrayList<RollupPolicy>();
+    for (String line : lines) {
+      policies.add(RollupPolicy.parse(line, policies.size()));
+    }
+    matcher = new PolicyMatcher(policies, 4);
+  }
+
+  @Test
+  public void testFirstMatchingPolicyWins() {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    tags.put("dc", "lax");
+    assertEquals(0, resolve("sys.cpu.user", tags).getPolicy().getIndex());
+    tags.put("dc", "sjc");
+    assertEquals(1, resolve("sys.cpu.user", tags).getPolicy().getIndex());
+    assertEquals(2, resolve("sys.mem.free", tags).getPolicy().getIndex());
+    assertFalse(resolve("sys.disk.used", tags).getPolicy().isEnabled());
+    assertSame(RollupPolicy.DEFAULT, resolve("app.requests", tags).getPolicy());
+  }
+
+  @Test
+  public void testGroupedSeriesShareAKey() {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("cluster", "c1");
+    tags.put("host", "web01");
+    PolicyMatcher.Resolution first = resolve("sys.cpu.idle", tags);
+    tags.put("host", "web02");
+    PolicyMatcher.Resolution second = resolve("sys.cpu.idle", tags);
+    assertEquals(first.getKey(), second.getKey());
+    Map<String, String> group = new HashMap<String, String>();
+    group.put("cluster", "c1");
+    assertEquals(group, second.getTags());
+    // the group resolves to itself when it is closed
+    assertSame(second.getPolicy(), resolve("sys.cpu.idle", group).getPolicy());
+    assertEquals(second.getKey(), resolve("sys.cpu.idle", group).getKey());
+  }
+
+  @Test
+  public void testResolutionsAreCachedAndBounded() {
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("dc", "lax");
+    PolicyMatcher.Resolution resolution = resolve("sys.cpu.user", tags);
+    assertSame(resolution, resolve("sys.cpu.user", tags));
+    Map<String, String> cold = new HashMap<String, String>(tags);
+    for (int i = 0; i < 10; i++) {
+      cold.put("host", "web" + i);
+      resolve("sys.cpu.user", cold);
+      // a series in use stays cached while others come and go
+      assertSame(resolution, resolve("sys.cpu.user", tags));
+    }
+    assertTrue(matcher.getCachedCount() <= 4);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testFilteringOnADroppedTagIsRejected() {
+    RollupPolicy.parse("sys.cpu.* where=host=web01 drop=host", 0);
+  }
+
+  private PolicyMatcher.Resolution resolve(final String metric, final Map<String, String> tags) {
+    return matcher.resolve(SeriesKey.of(metric, tags), metric, new HashMap<String, String>(tags));
+  }
+}
@@ -0,0 +1,100 @@
+package io.tsdb.opentsdb.realtime;
+
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.utils.Config;
+import org.jboss.netty.util.HashedWheelTimer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Measures how publishing to a single hot series scales with the number of
+ * ingest threads, with shared accumulators and with per-thread partials.
+ * Run with {@code java -cp ... io.tsdb.opentsdb.realtime.RollupPublisherBenchmark [seconds]}.
+ */
+public class RollupPublisherBenchmark {
+
+  public static void main(final String[] args) throws Exception {
+    long seconds = args.length > 0 ? Long.parseLong(args[0]) : 2;
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (String mode : new String[] { "shared", "per_thread" }) {
+      for (int threads = 1; threads <= cores; threads *= 2) {
+        // once to warm up, once to measure
+        run(mode, threads, seconds);
+        double rate = run(mode, threads, seconds);
+        System.out.println(String.format("%-10s %3d threads %,14.0f points/s", mode, threads, rate));
+      }
+    }
+  }
+
+  private static double run(final String mode, final int threads, final long seconds) throws Exception {
+    Config config = new Config(false);
+    config.overrideConfig("tsd.rtpublisher.rollup.aggregation", mode);
+    config.overrideConfig("tsd.network.worker_threads", Integer.toString(threads));
+    HashedWheelTimer timer = new HashedWheelTimer();
+    final RollupPublisher publisher = new RollupPublisher();
+    publisher.initialize(config, timer, new RollupSink() {
+      @Override
+      public Deferred<Object> emit(String metric, long timestamp, double value, Map<String, String> tags) {
+        return Deferred.fromResult(null);
+      }
+    });
+    final long timestamp = System.currentTimeMillis() / 1000;
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    final CountDownLatch start = new CountDownLatch(1);
+    final long[] counts = new long[threads];
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          Map<String, String> tags = new HashMap<String, String>();
+          tags.put("host", "web01");
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          long count = 0;
+          while ((count & 1023) != 0 || System.nanoTime() < deadline) {
+            publisher.publishDataPoint("sys.cpu.user", timestamp, count, tags, null);
+            count++;
+          }
+          counts[thread] = count;
+        }
+      });
+    }
+    long began = System.nanoTime();
+    start.countDown();
+    pool.shutdown();
+    pool.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+    long elapsed = System.nanoTime() - began;
+    timer.stop();
+    long total = 0;
+    for (long count : counts) {
+      total += count;
+    }
+    return total * 1e9 / elapsed;
+  }
+}
@@ -0,0 +1,734 @@
+package io.tsdb.opentsdb.realtime;
+
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.stats.StatsCollector;
+import net.opentsdb.utils.Config;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Copyright 2015 The DiscoveryPlugins Authors
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+public class RollupPublisherTest {
+
+  private static final int THREADS = 16;
+  private static final int POINTS_PER_THREAD = 20000;
+  private static final int SERIES = 8;
+
+  private RollupPublisher publisher;
+  private HashedWheelTimer timer;
+  private Config config;
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+  private final List<Object[]> emitted = new ArrayList<Object[]>();
+  private final RollupSink sink = new RollupSink() {
+    @Override
+    public Deferred<Object> emit(String metric, long timestamp, double value, Map<String, String> tags) {
+      synchronized (emitted) {
+        emitted.add(new Object[] { metric, timestamp, value, tags });
+      }
+      return Deferred.fromResult(null);
+    }
+  };
+
+  @Before
+  public void setup() throws Exception {
+    config = new Config(false);
+    config.overrideConfig("tsd.network.worker_threads", Integer.toString(THREADS));
+    timer = new HashedWheelTimer();
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+  }
+
+  @After
+  public void teardown() {
+    timer.stop();
+  }
+
+  @Test
+  public void testConcurrentPublishLosesNoPoints() throws Exception {
+    final long timestamp = System.currentTimeMillis() / 1000;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    for (int t = 0; t < THREADS; t++) {
+      final int thread = t;
+      pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          Map<String, String> tags = new HashMap<String, String>();
+          tags.put("host", "web" + (thread % SERIES));
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < POINTS_PER_THREAD; i++) {
+            if (i % 2 == 0) {
+              publisher.publishDataPoint("sys.cpu.user", timestamp, (long) i, tags, null);
+            } else {
+              publisher.publishDataPoint("sys.cpu.user", timestamp, (double) i, tags, null);
+            }
+          }
+        }
+      });
+    }
+    start.countDown();
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(2, TimeUnit.MINUTES));
+    assertEquals((long) THREADS * POINTS_PER_THREAD, publisher.getPendingCount());
+  }
+
+  @Test
+  public void testCloseWindowEmitsAndFreesState() throws Exception {
+    long timestamp = System.currentTimeMillis() / 1000;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 2L, tags, null);
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 4.0d, tags, null);
+    publisher.publishDataPoint("sys.cpu.user.5m-avg", timestamp, 100L, tags, null);
+    assertEquals(1, publisher.getOpenSeriesCount());
+
+    long windowStart = timestamp - timestamp % 300;
+    publisher.closeWindow(publisher.getTier(0), windowStart);
+    assertEquals(0, publisher.getOpenSeriesCount());
+    assertEquals(1, emitted.size());
+    assertEquals("sys.cpu.user.5m-avg", emitted.get(0)[0]);
+    assertEquals(windowStart, emitted.get(0)[1]);
+    assertEquals(3.0d, (Double) emitted.get(0)[2], 0d);
+    assertEquals(tags, emitted.get(0)[3]);
+  }
+
+  @Test
+  public void testRollupsAreNotRolledUpAgain() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.quantiles", "0.95,0.999");
+    config.overrideConfig("tsd.rtpublisher.rollup.windows", "5,60");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    publisher.publishDataPoint("sys.cpu.user.5m-p95", timestamp, 1L, tags, null);
+    publisher.publishDataPoint("sys.cpu.user.5m-p99.9", timestamp, 1L, tags, null);
+    publisher.publishDataPoint("sys.cpu.user.60m-max", timestamp, 1L, tags, null);
+    assertEquals(0, publisher.getOpenSeriesCount());
+    // a tier's prefix alone does not make a rollup
+    publisher.publishDataPoint("app.5m-old.requests", timestamp, 1L, tags, null);
+    publisher.publishDataPoint("sys.cpu.user.5m-p50", timestamp, 1L, tags, null);
+    assertEquals(2, publisher.getOpenSeriesCount());
+  }
+
+  @Test
+  public void testEventTimeBucketingDropsLateData() throws Exception {
+    long now = System.currentTimeMillis();
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    // millisecond timestamps land in the same window as second timestamps
+    publisher.publishDataPoint("sys.cpu.user", now, 1L, tags, null);
+    publisher.publishDataPoint("sys.cpu.user", now / 1000, 3L, tags, null);
+    assertEquals(1, publisher.getOpenSeriesCount());
+    // an hour behind the watermark is well past the allowed lateness
+    publisher.publishDataPoint("sys.cpu.user", now / 1000 - 3600, 5L, tags, null);
+    assertEquals(2, publisher.getPendingCount());
+    assertEquals(1, publisher.getOpenSeriesCount());
+  }
+
+  @Test
+  public void testCoarseTiersAreFedFromClosedWindows() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.windows", "1,5");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 2L, tags, null);
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 6L, tags, null);
+    assertEquals(1, publisher.getOpenSeriesCount());
+
+    publisher.closeWindow(publisher.getTier(0), timestamp - timestamp % 60);
+    assertEquals(1, emitted.size());
+    assertEquals("sys.cpu.user.1m-avg", emitted.get(0)[0]);
+    assertEquals(4.0d, (Double) emitted.get(0)[2], 0d);
+    assertEquals(0, publisher.getPendingCount());
+    assertEquals(1, publisher.getOpenSeriesCount());
+
+    publisher.closeWindow(publisher.getTier(1), timestamp - timestamp % 300);
+    assertEquals(2, emitted.size());
+    assertEquals("sys.cpu.user.5m-avg", emitted.get(1)[0]);
+    assertEquals(timestamp - timestamp % 300, emitted.get(1)[1]);
+    assertEquals(4.0d, (Double) emitted.get(1)[2], 0d);
+    assertEquals(tags, emitted.get(1)[3]);
+    assertEquals(0, publisher.getOpenSeriesCount());
+    assertEquals(0, publisher.getDictionary().size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTiersMustBeMultiples() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.windows", "2,5");
+    new RollupPublisher().initialize(config, timer, sink);
+  }
+
+  @Test
+  public void testOffHeapStorage() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.storage", "offheap");
+    config.overrideConfig("tsd.rtpublisher.rollup.windows", "1,5");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    final long timestamp = System.currentTimeMillis() / 1000;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    for (int t = 0; t < THREADS; t++) {
+      pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          Map<String, String> tags = new HashMap<String, String>();
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < 5000; i++) {
+            tags.put("host", "web" + (i % 1000));
+            publisher.publishDataPoint("sys.cpu.user", timestamp, (long) (i % 1000), tags, null);
+          }
+        }
+      });
+    }
+    start.countDown();
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(2, TimeUnit.MINUTES));
+    assertEquals((long) THREADS * 5000, publisher.getPendingCount());
+    assertEquals(1000, publisher.getOpenSeriesCount());
+
+    publisher.closeWindow(publisher.getTier(0), timestamp - timestamp % 60);
+    publisher.closeWindow(publisher.getTier(1), timestamp - timestamp % 300);
+    assertEquals(2000, emitted.size());
+    for (Object[] point : emitted) {
+      String host = ((Map<String, String>) point[3]).get("host");
+      assertEquals(Double.parseDouble(host.substring(3)), (Double) point[2], 0d);
+    }
+    assertEquals(0, publisher.getOpenSeriesCount());
+    assertEquals(0, publisher.getDictionary().size());
+  }
+
+  @Test
+  public void testCheckpointRestoresOpenWindows() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.checkpoint.directory", folder.getRoot().getPath());
+    config.overrideConfig("tsd.rtpublisher.rollup.quantiles", "0.5");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 2L, tags, null);
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 4L, tags, null);
+    publisher.writeCheckpoint();
+    // only in the log written since the snapshot
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 9L, tags, null);
+    tags.put("host", "web02");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 1L, tags, null);
+
+    RollupPublisher restored = new RollupPublisher();
+    restored.initialize(config, timer, sink);
+    assertEquals(4, restored.getPendingCount());
+    assertEquals(2, restored.getOpenSeriesCount());
+    restored.closeWindow(restored.getTier(0), timestamp - timestamp % 300);
+    Map<String, Double> averages = new HashMap<String, Double>();
+    for (Object[] point : emitted) {
+      if (point[0].equals("sys.cpu.user.5m-avg")) {
+        averages.put(((Map<String, String>) point[3]).get("host"), (Double) point[2]);
+      }
+    }
+    assertEquals(5.0d, averages.get("web01"), 0d);
+    assertEquals(1.0d, averages.get("web02"), 0d);
+    assertEquals(4, emitted.size());
+  }
+
+  @Test
+  public void testCheckpointOnlyRewritesChangedWindows() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.checkpoint.directory", folder.getRoot().getPath());
+    config.overrideConfig("tsd.rtpublisher.rollup.allowed_lateness", "3600");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    publisher.publishDataPoint("sys.cpu.user", timestamp - 600, 1L, tags, null);
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 2L, tags, null);
+    publisher.writeCheckpoint();
+    String[] first = windowFiles();
+
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 3L, tags, null);
+    publisher.writeCheckpoint();
+    String[] second = windowFiles();
+    assertEquals(first.length, second.length);
+    int kept = 0;
+    for (String name : second) {
+      kept += Arrays.asList(first).contains(name) ? 1 : 0;
+    }
+    // only the window that changed is written again
+    assertEquals(first.length - 1, kept);
+
+    publisher.publishDataPoint("sys.cpu.user", timestamp - 600, 4L, tags, null);
+    RollupPublisher restored = new RollupPublisher();
+    restored.initialize(config, timer, sink);
+    assertEquals(4, restored.getPendingCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsCheckpointOfAnotherVersion() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.checkpoint.directory", folder.getRoot().getPath());
+    ByteBuffer header = ByteBuffer.allocate(28);
+    header.putInt(0x52505348).putInt(2).putLong(0).putLong(0).putInt(0);
+    Files.write(new File(folder.getRoot(), "rollup.snapshot").toPath(), header.array());
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+  }
+
+  @Test
+  public void testCheckpointDuringIngestRestoresEveryPointOnce() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.checkpoint.directory", folder.getRoot().getPath());
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    final long timestamp = System.currentTimeMillis() / 1000;
+    final int threads = 4;
+    final int points = 20000;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Future<?>> writers = new ArrayList<Future<?>>();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      writers.add(pool.submit(new Callable<Void>() {
+        public Void call() throws Exception {
+          start.await();
+          Map<String, String> tags = new HashMap<String, String>();
+          for (int i = 0; i < points; i++) {
+            tags.put("host", "web" + (thread * 100 + i % 100));
+            publisher.publishDataPoint("sys.cpu.user", timestamp, 1L, tags, null);
+          }
+          return null;
+        }
+      }));
+    }
+    start.countDown();
+    boolean done = false;
+    while (!done) {
+      publisher.writeCheckpoint();
+      done = true;
+      for (Future<?> writer : writers) {
+        done &= writer.isDone();
+      }
+    }
+    for (Future<?> writer : writers) {
+      writer.get();
+    }
+    pool.shutdown();
+    assertEquals((long) threads * points, publisher.getPendingCount());
+
+    RollupPublisher restored = new RollupPublisher();
+    restored.initialize(config, timer, sink);
+    assertEquals((long) threads * points, restored.getPendingCount());
+  }
+
+  private String[] windowFiles() {
+    List<String> names = new ArrayList<String>();
+    for (String name : folder.getRoot().list()) {
+      if (name.startsWith("rollup.window.")) {
+        names.add(name);
+      }
+    }
+    return names.toArray(new String[names.size()]);
+  }
+
+  @Test
+  public void testClosedWindowIsNotReopenedByLatePoints() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.allowed_lateness", "3600");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000 - 600;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 1L, tags, null);
+    publisher.closeWindow(publisher.getTier(0), timestamp - timestamp % 300);
+    assertEquals(1, emitted.size());
+
+    // still within the lateness, but its window has already been written
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 2L, tags, null);
+    assertEquals(0, publisher.getOpenSeriesCount());
+    publisher.closeWindow(publisher.getTier(0), timestamp - timestamp % 300);
+    assertEquals(1, emitted.size());
+  }
+
+  @Test
+  public void testSeriesBudgetEvictsLeastRecentWindow() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.max_series", "2");
+    // late points for the evicted window are still within the lateness
+    config.overrideConfig("tsd.rtpublisher.rollup.allowed_lateness", "3600");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    publisher.publishDataPoint("sys.cpu.user", timestamp - 600, 1L, tags, null);
+    tags.put("host", "web02");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 2L, tags, null);
+    assertEquals(2, publisher.getOpenSeriesCount());
+
+    // the new series is rejected, and the backfilled window, which has
+    // ended and is the least recently updated, is closed early
+    tags.put("host", "web03");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 3L, tags, null);
+    assertEquals(1, emitted.size());
+    assertEquals(timestamp - 600 - (timestamp - 600) % 300, emitted.get(0)[1]);
+    assertEquals(1, publisher.getOpenSeriesCount());
+    assertEquals(1, publisher.getPendingCount());
+
+    // the next new series fits in the budget again
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 4L, tags, null);
+    assertEquals(2, publisher.getOpenSeriesCount());
+
+    // the evicted window is never opened and written a second time
+    tags.put("host", "web01");
+    publisher.publishDataPoint("sys.cpu.user", timestamp - 600, 5L, tags, null);
+    publisher.closeWindow(publisher.getTier(0), timestamp - 600 - (timestamp - 600) % 300);
+    assertEquals(2, publisher.getOpenSeriesCount());
+    assertEquals(1, emitted.size());
+
+    // the window in progress is not evicted even though the budget is full
+    tags.put("host", "web04");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 6L, tags, null);
+    assertEquals(1, emitted.size());
+    assertEquals(2, publisher.getOpenSeriesCount());
+  }
+
+  @Test
+  public void testGroupRuleAggregatesAcrossDroppedTags() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.group_rules", "sys.cpu.user:host");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("cluster", "c1");
+    for (int i = 0; i < 3; i++) {
+      for (int host = 0; host < 10; host++) {
+        tags.put("host", "web" + host);
+        publisher.publishDataPoint("sys.cpu.user", timestamp, (long) host, tags, null);
+      }
+    }
+    assertEquals(1, publisher.getOpenSeriesCount());
+
+    publisher.closeWindow(publisher.getTier(0), timestamp - timestamp % 300);
+    Map<String, String> group = new HashMap<String, String>();
+    group.put("cluster", "c1");
+    assertEquals(2, emitted.size());
+    assertEquals("sys.cpu.user.5m-avg", emitted.get(0)[0]);
+    assertEquals(4.5d, (Double) emitted.get(0)[2], 0d);
+    assertEquals(group, emitted.get(0)[3]);
+    // the total across hosts, not of every datapoint they sent
+    assertEquals("sys.cpu.user.5m-sum", emitted.get(1)[0]);
+    assertEquals(45.0d, (Double) emitted.get(1)[2], 0d);
+    assertEquals(group, emitted.get(1)[3]);
+  }
+
+  @Test
+  public void testGroupSumSurvivesRestore() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.checkpoint.directory", folder.getRoot().getPath());
+    config.overrideConfig("tsd.rtpublisher.rollup.group_rules", "sys.cpu.user:host");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("cluster", "c1");
+    tags.put("host", "web01");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 2L, tags, null);
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 4L, tags, null);
+    publisher.writeCheckpoint();
+    // only in the log written since the snapshot
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 6L, tags, null);
+    tags.put("host", "web02");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 10L, tags, null);
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 20L, tags, null);
+
+    RollupPublisher restored = new RollupPublisher();
+    restored.initialize(config, timer, sink);
+    restored.closeWindow(restored.getTier(0), timestamp - timestamp % 300);
+    for (Object[] point : emitted) {
+      if (point[0].equals("sys.cpu.user.5m-sum")) {
+        assertEquals(19.0d, (Double) point[2], 0d);
+      }
+    }
+    assertEquals(2, emitted.size());
+  }
+
+  @Test
+  public void testPerThreadPartialsMergeAtClose() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.aggregation", "per_thread");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    final long timestamp = System.currentTimeMillis() / 1000;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    for (int t = 0; t < THREADS; t++) {
+      pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          Map<String, String> tags = new HashMap<String, String>();
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < POINTS_PER_THREAD; i++) {
+            tags.put("host", "web" + (i % SERIES));
+            publisher.publishDataPoint("sys.cpu.user", timestamp, (long) (i % SERIES), tags, null);
+          }
+        }
+      });
+    }
+    start.countDown();
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(2, TimeUnit.MINUTES));
+    assertEquals((long) THREADS * POINTS_PER_THREAD, publisher.getPendingCount());
+    assertEquals(SERIES, publisher.getOpenSeriesCount());
+
+    publisher.closeWindow(publisher.getTier(0), timestamp - timestamp % 300);
+    assertEquals(SERIES, emitted.size());
+    for (Object[] point : emitted) {
+      String host = ((Map<String, String>) point[3]).get("host");
+      assertEquals(Double.parseDouble(host.substring(3)), (Double) point[2], 0d);
+    }
+    assertEquals(0, publisher.getDictionary().size());
+  }
+
+  @Test
+  public void testPerThreadSeriesCountOnceAgainstTheBudget() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.aggregation", "per_thread");
+    config.overrideConfig("tsd.rtpublisher.rollup.max_series", "2");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    final long timestamp = System.currentTimeMillis() / 1000;
+    // each batch runs on a thread of its own, and so in a partial of its own
+    publish(timestamp, 1L, "web01", "web02");
+    publish(timestamp, 3L, "web01", "web02");
+    assertEquals(2, publisher.getOpenSeriesCount());
+    publish(timestamp, 5L, "web03");
+    assertEquals(2, publisher.getOpenSeriesCount());
+
+    publisher.closeWindow(publisher.getTier(0), timestamp - timestamp % 300);
+    assertEquals(2, emitted.size());
+    for (Object[] point : emitted) {
+      assertEquals(2d, (Double) point[2], 0d);
+    }
+    assertEquals(0, publisher.getDictionary().size());
+  }
+
+  @Test
+  public void testPerThreadSlotsOfDeadThreadsAreReused() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.aggregation", "per_thread");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    final long timestamp = System.currentTimeMillis() / 1000;
+    long windowStart = timestamp - timestamp % 300;
+    for (int i = 0; i < 20; i++) {
+      publish(timestamp, i, "web01");
+    }
+    assertEquals(1, publisher.getTier(0).getWindows().get(windowStart).getPartialCount());
+
+    publisher.closeWindow(publisher.getTier(0), windowStart);
+    assertEquals(1, emitted.size());
+    assertEquals(9.5d, (Double) emitted.get(0)[2], 0d);
+  }
+
+  private void publish(final long timestamp, final long value, final String... hosts) throws Exception {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        Map<String, String> tags = new HashMap<String, String>();
+        for (String host : hosts) {
+          tags.put("host", host);
+          publisher.publishDataPoint("sys.cpu.user", timestamp, value, tags, null);
+        }
+      }
+    });
+    thread.start();
+    thread.join();
+  }
+
+  @Test
+  public void testRingHandOffLosesNoPoints() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.ring.threads", "2");
+    config.overrideConfig("tsd.rtpublisher.rollup.ring.size", "1024");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    final long timestamp = System.currentTimeMillis() / 1000;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    for (int t = 0; t < THREADS; t++) {
+      pool.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < POINTS_PER_THREAD; i++) {
+            // tags are handed off by reference, so each point gets its own
+            Map<String, String> tags = new HashMap<String, String>();
+            tags.put("host", "web" + (i % SERIES));
+            publisher.publishDataPoint("sys.cpu.user", timestamp, (long) i, tags, null);
+          }
+        }
+      });
+    }
+    start.countDown();
+    pool.shutdown();
+    assertTrue(pool.awaitTermination(2, TimeUnit.MINUTES));
+    publisher.stopRings();
+    assertEquals((long) THREADS * POINTS_PER_THREAD, publisher.getPendingCount());
+    assertEquals(SERIES, publisher.getOpenSeriesCount());
+  }
+
+  @Test
+  public void testCounterPolicyEmitsRateAndDelta() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.policies", "proc.net.bytes type=counter aggregates=rate,delta");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long now = System.currentTimeMillis() / 1000;
+    long start = now - now % 300;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    publisher.publishDataPoint("proc.net.bytes", start, 1000L, tags, null);
+    publisher.publishDataPoint("proc.net.bytes", (start + 10) * 1000, 3000L, tags, null);
+    publisher.publishDataPoint("proc.net.bytes", start + 20, 500L, tags, null);
+
+    publisher.closeWindow(publisher.getTier(0), start);
+    assertEquals(2, emitted.size());
+    assertEquals("proc.net.bytes.5m-delta", emitted.get(0)[0]);
+    assertEquals(2500d / 20 * 300, (Double) emitted.get(0)[2], 1e-9);
+    assertEquals("proc.net.bytes.5m-rate", emitted.get(1)[0]);
+    assertEquals(2500d / 20, (Double) emitted.get(1)[2], 1e-9);
+  }
+
+  @Test
+  public void testEarlyFiringOnlyReemitsChangedSeries() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.early_firing_interval", "3600");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000;
+    Map<String, String> web01 = new HashMap<String, String>();
+    web01.put("host", "web01");
+    Map<String, String> web02 = new HashMap<String, String>();
+    web02.put("host", "web02");
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 2L, web01, null);
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 5L, web02, null);
+    publisher.fireEarly();
+    assertEquals(2, emitted.size());
+
+    publisher.publishDataPoint("sys.cpu.user", timestamp, 4L, web01, null);
+    publisher.fireEarly();
+    assertEquals(3, emitted.size());
+    assertEquals(web01, emitted.get(2)[3]);
+    assertEquals(3.0d, (Double) emitted.get(2)[2], 0d);
+    publisher.fireEarly();
+    assertEquals(3, emitted.size());
+
+    // the final rollup still covers every series
+    publisher.closeWindow(publisher.getTier(0), timestamp - timestamp % 300);
+    assertEquals(5, emitted.size());
+  }
+
+  @Test
+  public void testExactAggregatesFromRetainedPoints() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.policies", "sys.cpu.user aggregates=median,distinct");
+    config.overrideConfig("tsd.rtpublisher.rollup.windows", "1,5");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000;
+    Map<String, String> tags = new HashMap<String, String>();
+    tags.put("host", "web01");
+    for (long value : new long[] { 7, 1, 3, 3, 100 }) {
+      publisher.publishDataPoint("sys.cpu.user", timestamp, value, tags, null);
+    }
+    publisher.closeWindow(publisher.getTier(0), timestamp - timestamp % 60);
+    publisher.closeWindow(publisher.getTier(1), timestamp - timestamp % 300);
+    assertEquals(4, emitted.size());
+    for (Object[] point : emitted) {
+      if (((String) point[0]).endsWith("-distinct")) {
+        assertEquals(4d, (Double) point[2], 0d);
+      } else {
+        assertTrue(((String) point[0]).endsWith("-median"));
+        assertEquals(3d, (Double) point[2], 0d);
+      }
+    }
+  }
+
+  @Test
+  public void testCollectStatsReportsHeavyHittersAndDistinctSeries() throws Exception {
+    config.overrideConfig("tsd.rtpublisher.rollup.top_k", "2");
+    publisher = new RollupPublisher();
+    publisher.initialize(config, timer, sink);
+    long timestamp = System.currentTimeMillis() / 1000;
+    for (int i = 0; i < 4000; i++) {
+      Map<String, String> tags = new HashMap<String, String>();
+      tags.put("host", "web" + (i % 500));
+      publisher.publishDataPoint("sys.cpu.user", timestamp, (long) i, tags, null);
+      if (i % 20 == 0) {
+        tags.put("host", "db01");
+        publisher.publishDataPoint("sys.mem.free", timestamp, (long) i, tags, null);
+      }
+    }
+    final List<String> lines = new ArrayList<String>();
+    publisher.collectStats(new StatsCollector("tsd") {
+      @Override
+      public void emit(final String line) {
+        lines.add(line.trim());
+      }
+    });
+    String hitter = null;
+    long distinct = -1;
+    for (String line : lines) {
+      String[] fields = line.split(" ");
+      if (fields[0].equals("tsd.rollup.hitters.metric.rate") && hitter == null) {
+        hitter = fields[3];
+      } else if (fields[0].equals("tsd.rollup.series.distinct") && fields[3].equals("metric=sys.cpu.user")) {
+        distinct = Long.parseLong(fields[2]);
+      }
+    }
+    assertEquals("metric=sys.cpu.user", hitter);
+    assertEquals(500, distinct, 25);
+  }
+}